@@ -0,0 +1,372 @@
+package uni.tubingen.inference.msbayes;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+/**
+ * Streams the PSMs of idXML and mzIdentML files directly into a
+ * {@link PeptideProteinGraph}, in one pass with a StAX parser. Only the PSM
+ * being parsed is held in memory besides the graph (and for mzIdentML the
+ * lookup tables of the sequence collection).
+ * <p>
+ * Only the top hit of each spectrum is used. Its score is taken as probability
+ * of the PSM: idXML identifications must have a posterior probability or a
+ * posterior error probability as <code>score_type</code> (e.g. the output of
+ * IDPosteriorErrorProbability), other scores are rejected. For mzIdentML the
+ * configured score parameter is used. Hits with a probability outside of
+ * [0, 1] are skipped. The detectability is read from a parameter named
+ * {@value #DETECTABILITY_PARAM} of the hit, if there is none the default
+ * detectability is used.
+ *
+ * @author julian
+ *
+ */
+public class IdentificationFileReader {
+
+	/** name of the user parameter holding the peptide detectability */
+	public static final String DETECTABILITY_PARAM = "detectability";
+
+	/** default detectability of hits without a detectability parameter */
+	public static final double DEFAULT_DETECTABILITY = 0.5;
+
+	/** default score of mzIdentML files, the percolator posterior error probability */
+	public static final String DEFAULT_MZID_SCORE = "MS:1001493";
+
+	// the idXML score types of posterior error probabilities and of posterior probabilities, lower case
+	private static final String[] IDXML_ERROR_PROBABILITY_TYPES = {"posterior error probability", "pep"};
+	private static final String[] IDXML_PROBABILITY_TYPES = {"posterior probability", "probability"};
+
+
+	private final double defaultDetectability;
+
+	private final String mzidScore;
+
+	private final boolean mzidScoreIsErrorProbability;
+
+	private int nrPSMs;
+
+	private int nrSkipped;
+
+
+	/**
+	 * Constructor
+	 *
+	 * @param defaultDetectability the detectability of hits without a detectability parameter
+	 * @param mzidScore the accession or name of the cvParam or userParam holding the score in mzIdentML files
+	 * @param mzidScoreIsErrorProbability whether the mzIdentML score is an error probability
+	 */
+	public IdentificationFileReader(double defaultDetectability, String mzidScore, boolean mzidScoreIsErrorProbability) {
+		this.defaultDetectability = defaultDetectability;
+		this.mzidScore = mzidScore;
+		this.mzidScoreIsErrorProbability = mzidScoreIsErrorProbability;
+	}
+
+
+	/**
+	 * @return whether the file looks like an idXML or mzIdentML file, judged by its name
+	 */
+	public static boolean isIdentificationFile(String fileName) {
+		String name = fileName.toLowerCase();
+		return name.endsWith(".idxml") || name.endsWith(".mzid") || name.endsWith(".mzidentml");
+	}
+
+
+	/**
+	 * Reads the PSMs of the idXML or mzIdentML file into the graph, the format
+	 * is given by the root element.
+	 *
+	 * @param file
+	 * @param graph
+	 * @throws IOException
+	 */
+	public void read(File file, PeptideProteinGraph graph) throws IOException {
+		nrPSMs = 0;
+		nrSkipped = 0;
+
+		XMLInputFactory factory = XMLInputFactory.newInstance();
+		factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+		factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+
+		InputStream in = new BufferedInputStream(new FileInputStream(file));
+		try {
+			XMLStreamReader reader = factory.createXMLStreamReader(in);
+			try {
+				reader.nextTag();
+				String root = reader.getLocalName();
+				if (root.equals("IdXML")) {
+					readIdXML(reader, graph);
+				} else if (root.equals("MzIdentML")) {
+					readMzIdentML(reader, graph);
+				} else {
+					throw new IOException("unknown root element '" + root + "' in " + file
+							+ ", expected idXML or mzIdentML");
+				}
+			} finally {
+				reader.close();
+			}
+		} catch (XMLStreamException e) {
+			throw new IOException("could not parse " + file + ": " + e.getMessage(), e);
+		} finally {
+			in.close();
+		}
+	}
+
+
+	/**
+	 * @return the number of PSMs read from the last file
+	 */
+	public int getNrPSMs() {
+		return nrPSMs;
+	}
+
+
+	/**
+	 * @return the number of top hits of the last file, which were skipped for missing proteins or an invalid score
+	 */
+	public int getNrSkipped() {
+		return nrSkipped;
+	}
+
+
+	private void readIdXML(XMLStreamReader reader, PeptideProteinGraph graph) throws XMLStreamException, IOException {
+		// the protein accessions by their IDs, the ProteinHits are given before the PeptideIdentifications
+		Map<String, String> proteinAccessions = new HashMap<String, String>();
+
+		boolean errorProbability = false;
+		boolean topHit = false;
+
+		// the current hit
+		String sequence = null;
+		String proteinRefs = null;
+		double score = 0.0;
+		double detectability = defaultDetectability;
+
+		while (reader.hasNext()) {
+			int event = reader.next();
+			if (event == XMLStreamConstants.START_ELEMENT) {
+				String name = reader.getLocalName();
+				if (name.equals("ProteinHit")) {
+					proteinAccessions.put(reader.getAttributeValue(null, "id"), reader.getAttributeValue(null, "accession"));
+				} else if (name.equals("PeptideIdentification")) {
+					errorProbability = isErrorProbability(reader.getAttributeValue(null, "score_type"));
+					topHit = true;
+				} else if (name.equals("PeptideHit")) {
+					sequence = topHit ? reader.getAttributeValue(null, "sequence") : null;
+					proteinRefs = reader.getAttributeValue(null, "protein_refs");
+					score = parseDouble(reader.getAttributeValue(null, "score"));
+					detectability = defaultDetectability;
+					topHit = false;
+				} else if (name.equals("UserParam") && (sequence != null)
+						&& DETECTABILITY_PARAM.equals(reader.getAttributeValue(null, "name"))) {
+					detectability = parseDouble(reader.getAttributeValue(null, "value"));
+				}
+			} else if ((event == XMLStreamConstants.END_ELEMENT) && reader.getLocalName().equals("PeptideHit")) {
+				if (sequence != null) {
+					List<String> proteins = new ArrayList<String>();
+					if (proteinRefs != null) {
+						for (String ref : proteinRefs.trim().split("\\s+")) {
+							String accession = proteinAccessions.get(ref);
+							if (accession != null) {
+								proteins.add(accession);
+							}
+						}
+					}
+
+					double probability = errorProbability ? 1.0 - score : score;
+					addPSM(graph, sequence, proteins, probability, detectability);
+				}
+				sequence = null;
+			}
+		}
+	}
+
+
+	private void readMzIdentML(XMLStreamReader reader, PeptideProteinGraph graph) throws XMLStreamException, IOException {
+		// lookup tables of the sequence collection
+		Map<String, String> dbSequenceAccessions = new HashMap<String, String>();
+		Map<String, String> peptideSequences = new HashMap<String, String>();
+		Map<String, String> evidencePeptides = new HashMap<String, String>();
+		Map<String, String> evidenceAccessions = new HashMap<String, String>();
+
+		// the current peptide of the sequence collection
+		String peptideID = null;
+		StringBuilder peptideSequence = null;
+		List<Integer> modLocations = new ArrayList<Integer>();
+		List<String> modNames = new ArrayList<String>();
+		boolean inModification = false;
+		boolean inPeptideSequence = false;
+
+		// the current spectrum identification item
+		boolean inItem = false;
+		String itemPeptide = null;
+		List<String> itemProteins = new ArrayList<String>();
+		Double score = null;
+		double detectability = defaultDetectability;
+
+		while (reader.hasNext()) {
+			int event = reader.next();
+			if (event == XMLStreamConstants.START_ELEMENT) {
+				String name = reader.getLocalName();
+				if (name.equals("DBSequence")) {
+					dbSequenceAccessions.put(reader.getAttributeValue(null, "id"), reader.getAttributeValue(null, "accession"));
+				} else if (name.equals("Peptide")) {
+					peptideID = reader.getAttributeValue(null, "id");
+					peptideSequence = new StringBuilder();
+					modLocations.clear();
+					modNames.clear();
+				} else if (name.equals("PeptideSequence")) {
+					inPeptideSequence = true;
+				} else if (name.equals("Modification") && (peptideID != null)) {
+					String location = reader.getAttributeValue(null, "location");
+					try {
+						modLocations.add((location != null) ? Integer.parseInt(location.trim()) : 0);
+					} catch (NumberFormatException e) {
+						throw new IOException("invalid modification location '" + location + "' of peptide " + peptideID, e);
+					}
+					modNames.add(null);
+					inModification = true;
+				} else if (name.equals("cvParam") && inModification && (modNames.get(modNames.size() - 1) == null)) {
+					modNames.set(modNames.size() - 1, reader.getAttributeValue(null, "name"));
+				} else if (name.equals("PeptideEvidence")) {
+					String evidenceID = reader.getAttributeValue(null, "id");
+					evidencePeptides.put(evidenceID, reader.getAttributeValue(null, "peptide_ref"));
+					evidenceAccessions.put(evidenceID, dbSequenceAccessions.get(reader.getAttributeValue(null, "dBSequence_ref")));
+				} else if (name.equals("SpectrumIdentificationItem")) {
+					inItem = "1".equals(reader.getAttributeValue(null, "rank"));
+					itemPeptide = reader.getAttributeValue(null, "peptide_ref");
+					itemProteins.clear();
+					score = null;
+					detectability = defaultDetectability;
+				} else if (name.equals("PeptideEvidenceRef") && inItem) {
+					String evidenceID = reader.getAttributeValue(null, "peptideEvidence_ref");
+					String accession = evidenceAccessions.get(evidenceID);
+					if (accession != null) {
+						itemProteins.add(accession);
+					}
+					if (itemPeptide == null) {
+						itemPeptide = evidencePeptides.get(evidenceID);
+					}
+				} else if ((name.equals("cvParam") || name.equals("userParam")) && inItem) {
+					String accession = reader.getAttributeValue(null, "accession");
+					String paramName = reader.getAttributeValue(null, "name");
+					if (mzidScore.equals(accession) || mzidScore.equals(paramName)) {
+						score = parseDouble(reader.getAttributeValue(null, "value"));
+					} else if (DETECTABILITY_PARAM.equals(paramName)) {
+						detectability = parseDouble(reader.getAttributeValue(null, "value"));
+					}
+				}
+			} else if (event == XMLStreamConstants.CHARACTERS) {
+				if (inPeptideSequence) {
+					peptideSequence.append(reader.getText().trim());
+				}
+			} else if (event == XMLStreamConstants.END_ELEMENT) {
+				String name = reader.getLocalName();
+				if (name.equals("PeptideSequence")) {
+					inPeptideSequence = false;
+				} else if (name.equals("Modification")) {
+					inModification = false;
+				} else if (name.equals("Peptide") && (peptideID != null)) {
+					peptideSequences.put(peptideID, getModifiedSequence(peptideSequence, modLocations, modNames));
+					peptideID = null;
+				} else if (name.equals("SpectrumIdentificationItem")) {
+					if (inItem) {
+						String sequence = peptideSequences.get(itemPeptide);
+						if ((sequence == null) || (score == null)) {
+							nrSkipped++;
+						} else {
+							double probability = mzidScoreIsErrorProbability ? 1.0 - score : score;
+							addPSM(graph, sequence, itemProteins, probability, detectability);
+						}
+					}
+					inItem = false;
+				}
+			}
+		}
+	}
+
+
+	/**
+	 * @param scoreType the score_type of an idXML PeptideIdentification
+	 * @return whether the scores are posterior error probabilities (or else posterior probabilities)
+	 * @throws IOException if the scores are neither
+	 */
+	private static boolean isErrorProbability(String scoreType) throws IOException {
+		String type = (scoreType != null) ? scoreType.trim().toLowerCase() : "";
+		for (String errorType : IDXML_ERROR_PROBABILITY_TYPES) {
+			if (type.equals(errorType)) {
+				return true;
+			}
+		}
+		for (String probabilityType : IDXML_PROBABILITY_TYPES) {
+			if (type.equals(probabilityType)) {
+				return false;
+			}
+		}
+		throw new IOException("the idXML score type '" + scoreType + "' is no posterior (error) probability, "
+				+ "convert the scores first, e.g. with IDPosteriorErrorProbability");
+	}
+
+
+	/**
+	 * writes the modifications in brackets after the modified residues (like in idXML), N-terminal ones in front
+	 */
+	private static String getModifiedSequence(StringBuilder sequence, List<Integer> modLocations, List<String> modNames) {
+		if (modLocations.isEmpty()) {
+			return sequence.toString();
+		}
+
+		StringBuilder modified = new StringBuilder();
+		for (int pos = 0; pos <= sequence.length(); pos++) {
+			if (pos > 0) {
+				modified.append(sequence.charAt(pos - 1));
+			}
+			for (int i = 0; i < modLocations.size(); i++) {
+				int location = Math.min(modLocations.get(i), sequence.length());
+				if (location == pos) {
+					modified.append("(").append((modNames.get(i) != null) ? modNames.get(i) : "unknown").append(")");
+				}
+			}
+		}
+		return modified.toString();
+	}
+
+
+	private void addPSM(PeptideProteinGraph graph, String sequence, List<String> proteins, double probability,
+			double detectability) {
+		if (proteins.isEmpty() || Double.isNaN(probability) || (probability < 0.0) || (probability > 1.0)) {
+			// no probability, e.g. a raw search engine score
+			nrSkipped++;
+			return;
+		}
+
+		if (Double.isNaN(detectability)) {
+			detectability = defaultDetectability;
+		}
+		graph.addPSM(sequence, proteins.toArray(new String[proteins.size()]), probability, detectability);
+		nrPSMs++;
+	}
+
+
+	private static double parseDouble(String value) {
+		if (value == null) {
+			return Double.NaN;
+		}
+		try {
+			return Double.parseDouble(value);
+		} catch (NumberFormatException e) {
+			return Double.NaN;
+		}
+	}
+}
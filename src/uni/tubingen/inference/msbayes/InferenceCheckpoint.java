@@ -0,0 +1,500 @@
+package uni.tubingen.inference.msbayes;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * An append-only log of the inference results of completed components. The
+ * components are identified by a hash of their content, so a re-execution over
+ * the same input can skip all components which are already in the log.
+ * <p>
+ * Each component is written as its group and peptide lines followed by a
+ * commit line, the log is synced to disk by {@link #sync()}, e.g. after each
+ * batch. Components without a commit line (e.g. after a crash while writing)
+ * are cut off when the log is opened again.
+ * <p>
+ * The log is locked while it is open, so only one run at a time writes it.
+ * Logs which cannot be resumed anymore are removed by
+ * {@link #deleteUnused(File)} and {@link #deleteExpired(File, long)}.
+ *
+ * @author julian
+ *
+ */
+public class InferenceCheckpoint {
+
+	/** the file suffix of the checkpoint logs */
+	public static final String FILE_SUFFIX = ".ckpt";
+
+	/** default time after which a log, which is not written anymore, is deleted */
+	public static final long DEFAULT_MAX_AGE_MILLIS = 7L * 24 * 60 * 60 * 1000;
+
+	private static final String GROUP_RECORD = "G";
+
+	private static final String PEPTIDE_RECORD = "P";
+
+	private static final String COMMIT_RECORD = "C";
+
+	// the canonical paths of the logs open in this JVM: closing a file, which another run of this JVM
+	// has locked, releases that lock on some systems, so these logs are not even opened a second time
+	private static final Set<String> openLogs = new HashSet<String>();
+
+
+	private final File logFile;
+
+	private final String logPath;
+
+	// the results of the completed components, with protein accessions instead of IDs
+	private final Map<String, List<String[]>> completedGroups = new HashMap<String, List<String[]>>();
+
+	// the peptide posteriors of the completed components
+	private final Map<String, HashMap<String, Double>> completedPeptides = new HashMap<String, HashMap<String, Double>>();
+
+	// whether the completed components were inferred approximately
+	private final Map<String, Boolean> completedApproximate = new HashMap<String, Boolean>();
+
+	private final RandomAccessFile logAccess;
+
+	private final FileLock logLock;
+
+	private final PrintWriter logWriter;
+
+	private boolean closed;
+
+
+	/**
+	 * Opens and locks the checkpoint log, reading all completed components of
+	 * a previous run. The uncommitted tail of the log is cut off, new
+	 * components are appended after the last committed one.
+	 *
+	 * @param logFile
+	 * @throws IOException if the log cannot be opened or is in use by another run
+	 */
+	public InferenceCheckpoint(File logFile) throws IOException {
+		this.logFile = logFile;
+		this.logPath = logFile.getCanonicalPath();
+
+		if (!acquire(logPath)) {
+			throw new IOException("checkpoint " + logFile + " is in use by another run");
+		}
+		try {
+			if (logFile.getParentFile() != null) {
+				logFile.getParentFile().mkdirs();
+			}
+			logAccess = new RandomAccessFile(logFile, "rw");
+
+			FileLock lock;
+			try {
+				lock = logAccess.getChannel().tryLock();
+			} catch (OverlappingFileLockException e) {
+				// locked by another run in this JVM
+				lock = null;
+			} catch (IOException e) {
+				logAccess.close();
+				throw e;
+			}
+			if (lock == null) {
+				logAccess.close();
+				throw new IOException("checkpoint " + logFile + " is in use by another run");
+			}
+			logLock = lock;
+
+			try {
+				long committedLength = readLog();
+				logAccess.setLength(committedLength);
+				logAccess.seek(committedLength);
+			} catch (IOException e) {
+				close();
+				throw e;
+			}
+
+			// writes at the position of the file access
+			logWriter = new PrintWriter(new OutputStreamWriter(new FileOutputStream(logAccess.getFD()), "UTF-8"));
+		} catch (IOException e) {
+			release(logPath);
+			throw e;
+		}
+	}
+
+
+	/**
+	 * reads the completed components of the log
+	 *
+	 * @return the length of the log up to the end of the last commit line
+	 * @throws IOException
+	 */
+	private long readLog() throws IOException {
+		Map<String, List<String[]>> pendingGroups = new HashMap<String, List<String[]>>();
+		Map<String, HashMap<String, Double>> pendingPeptides = new HashMap<String, HashMap<String, Double>>();
+		long committedLength = 0;
+
+		// the lines are read from the locked file access itself, to know where they end
+		logAccess.seek(0);
+		byte[] buffer = new byte[65536];
+		ByteArrayOutputStream lineBytes = new ByteArrayOutputStream();
+		long position = 0;
+		int len;
+		while ((len = logAccess.read(buffer)) > 0) {
+			for (int i = 0; i < len; i++) {
+				position++;
+				if (buffer[i] != '\n') {
+					lineBytes.write(buffer[i]);
+					continue;
+				}
+
+				// a complete line, a line without newline at the end of the log is torn
+				String line = lineBytes.toString("UTF-8");
+				lineBytes.reset();
+				if (line.endsWith("\r")) {
+					line = line.substring(0, line.length() - 1);
+				}
+				String[] fields = line.split("\t");
+
+				if (GROUP_RECORD.equals(fields[0]) && (fields.length == 6)) {
+					if (!pendingGroups.containsKey(fields[1])) {
+						pendingGroups.put(fields[1], new ArrayList<String[]>());
+					}
+					pendingGroups.get(fields[1]).add(fields);
+				} else if (PEPTIDE_RECORD.equals(fields[0]) && (fields.length == 4)) {
+					if (!pendingPeptides.containsKey(fields[1])) {
+						pendingPeptides.put(fields[1], new HashMap<String, Double>());
+					}
+					try {
+						pendingPeptides.get(fields[1]).put(fields[2], Double.parseDouble(fields[3]));
+					} catch (NumberFormatException e) {
+						// a torn line
+					}
+				} else if (COMMIT_RECORD.equals(fields[0]) && (fields.length == 3)) {
+					List<String[]> groups = pendingGroups.remove(fields[1]);
+					completedGroups.put(fields[1], (groups != null) ? groups : new ArrayList<String[]>());
+					HashMap<String, Double> peptides = pendingPeptides.remove(fields[1]);
+					completedPeptides.put(fields[1], (peptides != null) ? peptides : new HashMap<String, Double>());
+					completedApproximate.put(fields[1], "1".equals(fields[2]));
+					committedLength = position;
+				}
+				// anything else is the torn tail of an interrupted run, it is ignored
+			}
+		}
+		return committedLength;
+	}
+
+
+	public File getLogFile() {
+		return logFile;
+	}
+
+
+	/**
+	 * @return the number of completed components in the log
+	 */
+	public int getNrCompleted() {
+		return completedGroups.size();
+	}
+
+
+	public synchronized boolean isCompleted(String componentKey) {
+		return completedGroups.containsKey(componentKey);
+	}
+
+
+	public synchronized boolean isApproximate(String componentKey) {
+		return Boolean.TRUE.equals(completedApproximate.get(componentKey));
+	}
+
+
+	/**
+	 * Returns the results of a completed component.
+	 *
+	 * @param componentKey
+	 * @param graph the graph to map the accessions back to protein IDs
+	 * @return a map from the protein group's IDs to array[probability, nrModPeps, nrPeps]
+	 */
+	public synchronized HashMap<String, Number[]> getResult(String componentKey, PeptideProteinGraph graph) {
+		HashMap<String, Number[]> proteinsMap = new HashMap<String, Number[]>();
+
+		for (String[] fields : completedGroups.get(componentKey)) {
+			StringBuilder protIDs = new StringBuilder();
+			for (String acc : fields[2].split(";")) {
+				if (protIDs.length() > 0) {
+					protIDs.append(";");
+				}
+				protIDs.append(graph.getProteinIndex(acc) + PeptideProteinGraph.PROTEIN_ID_OFFSET);
+			}
+
+			Number[] values = new Number[3];
+			values[0] = Double.parseDouble(fields[3]);
+			values[1] = Integer.parseInt(fields[4]);
+			values[2] = Integer.parseInt(fields[5]);
+
+			proteinsMap.put(protIDs.toString(), values);
+		}
+
+		return proteinsMap;
+	}
+
+
+	/**
+	 * Returns the peptide posteriors of a completed component.
+	 *
+	 * @param componentKey
+	 * @return a map from the peptide sequences to their posterior probabilities
+	 */
+	public synchronized HashMap<String, Double> getPeptideResult(String componentKey) {
+		return new HashMap<String, Double>(completedPeptides.get(componentKey));
+	}
+
+
+	/**
+	 * Appends the results of a component to the log, it is durable after the next {@link #sync()}.
+	 *
+	 * @param componentKey
+	 * @param proteinsMap the results of the component, from the protein group's IDs to array[probability, nrModPeps, nrPeps]
+	 * @param peptidePosteriors the peptide posteriors of the component, may be empty
+	 * @param approximate whether the component was inferred approximately
+	 * @param graph the graph to map the protein IDs to accessions
+	 * @throws IOException
+	 */
+	public synchronized void append(String componentKey, Map<String, Number[]> proteinsMap,
+			Map<String, Double> peptidePosteriors, boolean approximate, PeptideProteinGraph graph) throws IOException {
+		if (closed) {
+			throw new IOException("checkpoint " + logFile + " is already closed");
+		}
+		List<String[]> groups = new ArrayList<String[]>();
+
+		for (Map.Entry<String, Number[]> groupIt : proteinsMap.entrySet()) {
+			Number[] values = groupIt.getValue();
+			String[] fields = new String[] {GROUP_RECORD, componentKey, graph.getProteinAccessions(groupIt.getKey()),
+					Double.toString(values[0].doubleValue()),
+					Integer.toString(values[1].intValue()),
+					Integer.toString(values[2].intValue())};
+
+			logWriter.println(join(fields));
+			groups.add(fields);
+		}
+		for (Map.Entry<String, Double> peptideIt : peptidePosteriors.entrySet()) {
+			logWriter.println(join(new String[] {PEPTIDE_RECORD, componentKey, peptideIt.getKey(),
+					Double.toString(peptideIt.getValue())}));
+		}
+		logWriter.println(join(new String[] {COMMIT_RECORD, componentKey, approximate ? "1" : "0"}));
+
+		logWriter.flush();
+		if (logWriter.checkError()) {
+			throw new IOException("could not write checkpoint " + logFile);
+		}
+
+		completedGroups.put(componentKey, groups);
+		completedPeptides.put(componentKey, new HashMap<String, Double>(peptidePosteriors));
+		completedApproximate.put(componentKey, approximate);
+	}
+
+
+	/**
+	 * Syncs the appended components to disk.
+	 *
+	 * @throws IOException
+	 */
+	public synchronized void sync() throws IOException {
+		if (!closed) {
+			logAccess.getFD().sync();
+		}
+	}
+
+
+	/**
+	 * Closes the log and releases its lock.
+	 */
+	public synchronized void close() {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		if (logWriter != null) {
+			logWriter.flush();
+		}
+		try {
+			logLock.release();
+		} catch (IOException e) {
+			// released with the file anyway
+		}
+		try {
+			logAccess.close();
+		} catch (IOException e) {
+			// nothing left to write
+		}
+		release(logPath);
+	}
+
+
+	/**
+	 * Closes and deletes the log, e.g. after a completed run.
+	 */
+	public synchronized void delete() {
+		close();
+		logFile.delete();
+	}
+
+
+	/**
+	 * Deletes a log unless a run has it open, e.g. a log which cannot be
+	 * resumed anymore.
+	 *
+	 * @param logFile
+	 * @return whether the log was deleted
+	 */
+	public static boolean deleteUnused(File logFile) {
+		String logPath;
+		try {
+			logPath = logFile.getCanonicalPath();
+		} catch (IOException e) {
+			return false;
+		}
+		if (!logFile.isFile() || !acquire(logPath)) {
+			return false;
+		}
+		try {
+			RandomAccessFile access = new RandomAccessFile(logFile, "rw");
+			try {
+				// deleted while locked, so no other process opens it meanwhile
+				FileLock lock = access.getChannel().tryLock();
+				return (lock != null) && logFile.delete();
+			} finally {
+				access.close();
+			}
+		} catch (IOException e) {
+			return false;
+		} finally {
+			release(logPath);
+		}
+	}
+
+
+	/**
+	 * Deletes the logs of a directory, which were not written for the given
+	 * time and are not in use, e.g. of runs which were never resumed.
+	 *
+	 * @param directory
+	 * @param maxAgeMillis
+	 */
+	public static void deleteExpired(File directory, long maxAgeMillis) {
+		File[] logs = directory.listFiles();
+		if (logs == null) {
+			return;
+		}
+		long expiry = System.currentTimeMillis() - maxAgeMillis;
+		for (File log : logs) {
+			if (log.getName().endsWith(FILE_SUFFIX) && (log.lastModified() < expiry)) {
+				deleteUnused(log);
+			}
+		}
+	}
+
+
+	private static boolean acquire(String logPath) {
+		synchronized (openLogs) {
+			return openLogs.add(logPath);
+		}
+	}
+
+
+	private static void release(String logPath) {
+		synchronized (openLogs) {
+			openLogs.remove(logPath);
+		}
+	}
+
+
+	private static String join(String[] fields) {
+		StringBuilder sb = new StringBuilder();
+		for (String field : fields) {
+			if (sb.length() > 0) {
+				sb.append("\t");
+			}
+			sb.append(field);
+		}
+		return sb.toString();
+	}
+
+
+	/**
+	 * Computes the key of a component from its peptides, PSM probabilities,
+	 * proteins and detectabilities, and the way it is inferred.
+	 *
+	 * @param graph
+	 * @param component
+	 * @param inference a description of the inference method and its parameters
+	 * @return
+	 */
+	public static String getComponentKey(PeptideProteinGraph graph, PeptideProteinGraph.Component component,
+			String inference) {
+		MessageDigest digest = createDigest();
+		update(digest, inference);
+
+		for (int pepIdx : component.getPeptides()) {
+			update(digest, graph.getPeptideSequence(pepIdx));
+			for (int i = 0; i < graph.getNrPSMs(pepIdx); i++) {
+				update(digest, Double.toString(graph.getPSMProbability(pepIdx, i)));
+			}
+			for (int e = 0; e < graph.getNrEdges(pepIdx); e++) {
+				update(digest, graph.getProteinAccession(graph.getEdgeProtein(pepIdx, e)));
+				update(digest, Double.toString(graph.getEdgeDetectability(pepIdx, e)));
+			}
+		}
+
+		return toHex(digest.digest());
+	}
+
+
+	/**
+	 * @return the key of a whole run, combining the keys of all its components
+	 */
+	public static String getRunKey(List<String> componentKeys) {
+		MessageDigest digest = createDigest();
+		for (String key : componentKeys) {
+			update(digest, key);
+		}
+		return toHex(digest.digest());
+	}
+
+
+	private static MessageDigest createDigest() {
+		try {
+			return MessageDigest.getInstance("SHA-1");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException("SHA-1 is not available", e);
+		}
+	}
+
+
+	private static void update(MessageDigest digest, String value) {
+		try {
+			digest.update(value.getBytes("UTF-8"));
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException("UTF-8 is not available", e);
+		}
+		digest.update((byte) 0);
+	}
+
+
+	private static String toHex(byte[] bytes) {
+		StringBuilder sb = new StringBuilder();
+		for (byte b : bytes) {
+			sb.append(String.format("%02x", b));
+		}
+		return sb.toString();
+	}
+}
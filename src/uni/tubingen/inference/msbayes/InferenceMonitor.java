@@ -0,0 +1,36 @@
+package uni.tubingen.inference.msbayes;
+
+/**
+ * Progress, cancellation and logging callbacks of the {@link MSBayesProEngine}.
+ * This keeps the engine free of any KNIME classes: the node implements it on
+ * top of its execution context and logger, the command-line tool on top of the
+ * standard error stream.
+ *
+ * @author julian
+ *
+ */
+public interface InferenceMonitor {
+
+	/**
+	 * Throws an exception, if the inference should be stopped.
+	 *
+	 * @throws Exception
+	 */
+	public void checkCanceled() throws Exception;
+
+
+	/**
+	 * @param fraction the fraction of completed work in [0, 1]
+	 * @param message
+	 */
+	public void setProgress(double fraction, String message);
+
+
+	public void info(String message);
+
+
+	public void warn(String message);
+
+
+	public void error(String message, Throwable t);
+}
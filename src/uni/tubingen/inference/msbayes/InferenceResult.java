@@ -0,0 +1,118 @@
+package uni.tubingen.inference.msbayes;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The reported protein groups and, if requested, the peptide posteriors of a
+ * run of the {@link MSBayesProEngine}.
+ *
+ * @author julian
+ *
+ */
+public class InferenceResult {
+
+	private final PeptideProteinGraph graph;
+
+	// mapping from the protein group's IDs to array[probability, nrModPeps, nrPeps]
+	private final HashMap<String, Number[]> proteinsMap = new HashMap<String, Number[]>();
+
+	// the protein groups, which were inferred approximately
+	private final Set<String> approximateGroups = new HashSet<String>();
+
+	// mapping from the peptide sequences to their posterior probabilities
+	private final HashMap<String, Double> peptidePosteriors = new HashMap<String, Double>();
+
+	// the peptides, whose posteriors were inferred approximately
+	private final Set<String> approximatePeptides = new HashSet<String>();
+
+	// mapping from the protein group's IDs to array[mean, lower bound, nrReplicates] of the bootstrap
+	private final HashMap<String, Number[]> bootstrapMap = new HashMap<String, Number[]>();
+
+
+	public InferenceResult(PeptideProteinGraph graph) {
+		this.graph = graph;
+	}
+
+
+	/**
+	 * adds the results of an inference to the reported protein groups
+	 *
+	 * @param result a map from the protein group's IDs to array[probability, nrModPeps, nrPeps]
+	 * @param approximate whether the groups were inferred approximately
+	 */
+	public void addProteins(Map<String, Number[]> result, boolean approximate) {
+		proteinsMap.putAll(result);
+		if (approximate) {
+			approximateGroups.addAll(result.keySet());
+		}
+	}
+
+
+	/**
+	 * adds the peptide posteriors of an inference
+	 *
+	 * @param posteriors a map from the peptide sequences to their posterior probabilities
+	 * @param approximate whether the posteriors were inferred approximately
+	 */
+	public void addPeptides(Map<String, Double> posteriors, boolean approximate) {
+		peptidePosteriors.putAll(posteriors);
+		if (approximate) {
+			approximatePeptides.addAll(posteriors.keySet());
+		}
+	}
+
+
+	/**
+	 * sets the bootstrap statistics of a protein group
+	 *
+	 * @param proteinIDs
+	 * @param mean the mean probability over all replicates, replicates not reporting the group count with 0
+	 * @param lower the one-sided lower confidence bound of the probability
+	 * @param nrReplicates the number of replicates reporting the group
+	 */
+	public void setBootstrap(String proteinIDs, double mean, double lower, int nrReplicates) {
+		bootstrapMap.put(proteinIDs, new Number[] {mean, lower, nrReplicates});
+	}
+
+
+	public PeptideProteinGraph getGraph() {
+		return graph;
+	}
+
+
+	/**
+	 * @return a map from the protein group's IDs to array[probability, nrModPeps, nrPeps]
+	 */
+	public HashMap<String, Number[]> getProteinsMap() {
+		return proteinsMap;
+	}
+
+
+	public boolean isApproximate(String proteinIDs) {
+		return approximateGroups.contains(proteinIDs);
+	}
+
+
+	/**
+	 * @return a map from the peptide sequences to their posterior probabilities, empty if they were not requested
+	 */
+	public HashMap<String, Double> getPeptidePosteriors() {
+		return peptidePosteriors;
+	}
+
+
+	public boolean isApproximatePeptide(String peptide) {
+		return approximatePeptides.contains(peptide);
+	}
+
+
+	/**
+	 * @return array[mean, lower bound, nrReplicates] of the bootstrap, null if there was no bootstrap
+	 */
+	public Number[] getBootstrap(String proteinIDs) {
+		return bootstrapMap.get(proteinIDs);
+	}
+}
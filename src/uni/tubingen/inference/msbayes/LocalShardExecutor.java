@@ -0,0 +1,213 @@
+package uni.tubingen.inference.msbayes;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Executes the shards with the MSBayesPro executable on this machine, each in
+ * a temporary directory of its own in the scratch directory. The inputs are
+ * passed as temporary files or through named pipes.
+ * <p>
+ * It is the default {@link ShardExecutor} of the {@link MSBayesProEngine} and
+ * also runs the shards received by a {@link ShardWorker}.
+ *
+ * @author julian
+ *
+ */
+public class LocalShardExecutor implements ShardExecutor {
+
+	/**
+	 * Writes an input file of MSBayesPro.
+	 */
+	public interface InputWriter {
+		public void write(PrintWriter pw) throws IOException;
+	}
+
+
+	private final String executable;
+
+	private final File scratchDirectory;
+
+	private final boolean useNamedPipes;
+
+	private InferenceMonitor monitor;
+
+
+	/**
+	 * Constructor
+	 *
+	 * @param executable the path to the MSBayesPro executable, null for the one shipped with the plugin
+	 * @param scratchDirectory the directory of the temporary files, null for the default temporary directory
+	 * @param useNamedPipes whether the inputs are passed through named pipes instead of files
+	 */
+	public LocalShardExecutor(String executable, File scratchDirectory, boolean useNamedPipes) {
+		this.executable = executable;
+		this.scratchDirectory = scratchDirectory;
+		this.useNamedPipes = useNamedPipes;
+		this.monitor = null;
+	}
+
+
+	@Override
+	public void start(InferenceMonitor monitor) {
+		this.monitor = monitor;
+	}
+
+
+	@Override
+	public int getNrSlots() {
+		return 0;
+	}
+
+
+	@Override
+	public InferenceResult execute(final PeptideProteinGraph graph, final List<PeptideProteinGraph.Component> shard,
+			boolean peptidePosteriors) throws IOException, InterruptedException {
+		InputWriter probabilities = new InputWriter() {
+			@Override
+			public void write(PrintWriter pw) {
+				graph.writeProbabilities(pw, shard);
+			}
+		};
+		InputWriter detectabilities = new InputWriter() {
+			@Override
+			public void write(PrintWriter pw) {
+				graph.writeDetectabilities(pw, shard);
+			}
+		};
+
+		return runMsBayesPro(graph, probabilities, detectabilities, peptidePosteriors);
+	}
+
+
+	/**
+	 * runs MSBayesPro on the given inputs
+	 *
+	 * @param graph the graph of the result, may be null
+	 * @param probabilities writes the probability file
+	 * @param detectabilities writes the detectability file
+	 * @param peptidePosteriors whether the peptide posteriors are read as well
+	 * @return the protein groups and, if requested, the peptide posteriors
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	public InferenceResult runMsBayesPro(PeptideProteinGraph graph, final InputWriter probabilities,
+			final InputWriter detectabilities, boolean peptidePosteriors) throws IOException, InterruptedException {
+		File workingDirectory = createTempDirectory("msbayespro", scratchDirectory);
+		try {
+			File probabilityFile = new File(workingDirectory, "probability_file.txt");
+			File detectabilityFile = new File(workingDirectory, "detectability_file.txt");
+			MsBayesPro process = new MsBayesPro(executable, probabilityFile.getAbsolutePath(),
+					detectabilityFile.getAbsolutePath(), monitor);
+			process.setReadPeptidePosteriors(peptidePosteriors);
+
+			if (useNamedPipes && NamedPipeWriter.createPipe(probabilityFile) && NamedPipeWriter.createPipe(detectabilityFile)) {
+				// the inputs are written while MSBayesPro reads them
+				NamedPipeWriter probabilityWriter = new NamedPipeWriter(probabilityFile) {
+					@Override
+					protected void write(PrintWriter pw) throws IOException {
+						probabilities.write(pw);
+					}
+				};
+				NamedPipeWriter detectabilityWriter = new NamedPipeWriter(detectabilityFile) {
+					@Override
+					protected void write(PrintWriter pw) throws IOException {
+						detectabilities.write(pw);
+					}
+				};
+				probabilityWriter.start();
+				detectabilityWriter.start();
+
+				HashMap<String, Number[]> proteinsMap = null;
+				try {
+					proteinsMap = process.computeProteinInference();
+				} finally {
+					if (proteinsMap == null) {
+						// MSBayesPro failed or was cancelled, it may never open the pipes
+						probabilityWriter.abort();
+						detectabilityWriter.abort();
+					}
+				}
+				probabilityWriter.finish();
+				detectabilityWriter.finish();
+				return createResult(graph, proteinsMap, process);
+			}
+
+			if (useNamedPipes) {
+				monitor.warn("named pipes are not supported on this system, using files in " + workingDirectory.getParent());
+				probabilityFile.delete();
+				detectabilityFile.delete();
+			}
+
+			PrintWriter pw = new PrintWriter(new FileWriter(probabilityFile));
+			probabilities.write(pw);
+			pw.close();
+
+			pw = new PrintWriter(new FileWriter(detectabilityFile));
+			detectabilities.write(pw);
+			pw.close();
+
+			return createResult(graph, process.computeProteinInference(), process);
+		} finally {
+			deleteDirectory(workingDirectory);
+		}
+	}
+
+
+	private static InferenceResult createResult(PeptideProteinGraph graph, HashMap<String, Number[]> proteinsMap,
+			MsBayesPro process) {
+		InferenceResult result = new InferenceResult(graph);
+		result.addProteins(proteinsMap, false);
+		if (process.getPeptidePosteriors() != null) {
+			result.addPeptides(process.getPeptidePosteriors(), false);
+		}
+		return result;
+	}
+
+
+	@Override
+	public void shutdown() {
+		// nothing to release, the temporary directories are deleted after each shard
+	}
+
+
+	/**
+	 * creates a new, empty temporary directory
+	 *
+	 * @param prefix
+	 * @param parent the parent directory, null for the default temporary directory
+	 * @return
+	 * @throws IOException
+	 */
+	static File createTempDirectory(String prefix, File parent) throws IOException {
+		File dir = File.createTempFile(prefix, "", parent);
+		if (!dir.delete() || !dir.mkdir()) {
+			throw new IOException("could not create temporary directory " + dir);
+		}
+		return dir;
+	}
+
+
+	/**
+	 * deletes the directory with all its files
+	 *
+	 * @param dir
+	 */
+	static void deleteDirectory(File dir) {
+		File[] files = dir.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				if (file.isDirectory()) {
+					deleteDirectory(file);
+				} else {
+					file.delete();
+				}
+			}
+		}
+		dir.delete();
+	}
+}
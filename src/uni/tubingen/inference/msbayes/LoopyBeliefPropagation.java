@@ -0,0 +1,259 @@
+package uni.tubingen.inference.msbayes;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Approximate protein inference by loopy belief propagation on the factor
+ * graph of a single connected component. It is used instead of MSBayesPro for
+ * components, which are too large to be solved exactly in reasonable time.
+ * <p>
+ * The model follows MSBayesPro: each protein is present or absent with the
+ * given prior, a peptide is emitted by each present protein with the peptide's
+ * detectability in this protein (noisy-OR) and the peptide probability is used
+ * as soft evidence on the peptide. The messages are damped and the iterations
+ * stop at convergence, after the maximal number of iterations or when the
+ * wall-clock budget is used up, whatever comes first.
+ *
+ * @author julian
+ *
+ */
+public class LoopyBeliefPropagation {
+
+	/** the prior probability of a protein to be present */
+	public static final double PROTEIN_PRIOR = 0.5;
+
+	/** the maximal number of iterations */
+	public static final int MAX_ITERATIONS = 1000;
+
+	/** the iterations stop, if no message changes more than this (in log-odds) */
+	public static final double CONVERGENCE_THRESHOLD = 1e-6;
+
+	/** peptide probabilities are restricted to [EPSILON, 1-EPSILON] to keep the messages finite */
+	private static final double EPSILON = 1e-6;
+
+
+	private final PeptideProteinGraph graph;
+
+	private final PeptideProteinGraph.Component component;
+
+	private final double damping;
+
+	private final long budgetMillis;
+
+	private int iterations;
+
+	private boolean converged;
+
+	private HashMap<String, Double> peptidePosteriors;
+
+
+	/**
+	 * Constructor
+	 *
+	 * @param graph the whole graph
+	 * @param component the component of the graph to infer
+	 * @param damping the weight of the old message in each update, in [0, 1)
+	 * @param budgetMillis the wall-clock budget for the inference in milliseconds
+	 */
+	public LoopyBeliefPropagation(PeptideProteinGraph graph, PeptideProteinGraph.Component component,
+			double damping, long budgetMillis) {
+		this.graph = graph;
+		this.component = component;
+		this.damping = damping;
+		this.budgetMillis = budgetMillis;
+	}
+
+
+	/**
+	 * Runs the belief propagation and reports the proteins with a marginal
+	 * probability of at least 0.5. Proteins with the same peptides are reported
+	 * as one group with the group's highest probability.
+	 *
+	 * @return a map from the protein group's IDs to array[probability, nrModPeps, nrPeps]
+	 */
+	public HashMap<String, Number[]> computeProteinInference() {
+		long deadline = System.currentTimeMillis() + budgetMillis;
+
+		int[] peptides = component.getPeptides();
+		int[] proteins = component.getProteins();
+
+		// local indices of the proteins
+		Map<Integer, Integer> localProteins = new HashMap<Integer, Integer>();
+		for (int i = 0; i < proteins.length; i++) {
+			localProteins.put(proteins[i], i);
+		}
+
+		// the edges of the peptides in compressed form, edges of peptide i are in [edgeStart[i], edgeStart[i+1])
+		int[] edgeStart = new int[peptides.length + 1];
+		for (int i = 0; i < peptides.length; i++) {
+			edgeStart[i + 1] = edgeStart[i] + graph.getNrEdges(peptides[i]);
+		}
+		int nrEdges = edgeStart[peptides.length];
+		int[] edgeProtein = new int[nrEdges];
+		double[] edgeDetectability = new double[nrEdges];
+		double[] evidence = new double[peptides.length];
+		for (int i = 0; i < peptides.length; i++) {
+			for (int e = 0; e < graph.getNrEdges(peptides[i]); e++) {
+				edgeProtein[edgeStart[i] + e] = localProteins.get(graph.getEdgeProtein(peptides[i], e));
+				edgeDetectability[edgeStart[i] + e] = graph.getEdgeDetectability(peptides[i], e);
+			}
+			evidence[i] = Math.min(1.0 - EPSILON, Math.max(EPSILON, graph.getPeptideProbability(peptides[i])));
+		}
+
+		// messages from the peptide factors to the proteins, as log(m(1) / m(0))
+		double[] factorMessages = new double[nrEdges];
+		double[] beliefs = new double[proteins.length];
+		double priorLogOdds = Math.log(PROTEIN_PRIOR / (1.0 - PROTEIN_PRIOR));
+
+		// buffers for the leave-one-out products
+		double[] terms = new double[nrEdges];
+		double[] suffix = new double[nrEdges + 1];
+
+		iterations = 0;
+		converged = false;
+		while (!converged && (iterations < MAX_ITERATIONS) && (System.currentTimeMillis() < deadline)
+				&& !Thread.currentThread().isInterrupted()) {
+			computeBeliefs(beliefs, priorLogOdds, factorMessages, edgeProtein);
+
+			double maxDelta = 0.0;
+			for (int i = 0; i < peptides.length; i++) {
+				int start = edgeStart[i];
+				int end = edgeStart[i + 1];
+
+				// probability of the peptide not to be emitted by the protein of edge k, given the message to the factor
+				for (int k = start; k < end; k++) {
+					double toFactor = sigmoid(beliefs[edgeProtein[k]] - factorMessages[k]);
+					terms[k] = 1.0 - toFactor * edgeDetectability[k];
+				}
+				suffix[end] = 1.0;
+				for (int k = end - 1; k >= start; k--) {
+					suffix[k] = suffix[k + 1] * terms[k];
+				}
+
+				double prefix = 1.0;
+				for (int k = start; k < end; k++) {
+					// probability that no other protein emits the peptide
+					double others = prefix * suffix[k + 1];
+					prefix *= terms[k];
+
+					double absent = evidence[i] + (1.0 - 2.0 * evidence[i]) * others;
+					double present = evidence[i] + (1.0 - 2.0 * evidence[i]) * others * (1.0 - edgeDetectability[k]);
+					double message = damping * factorMessages[k] + (1.0 - damping) * Math.log(present / absent);
+
+					maxDelta = Math.max(maxDelta, Math.abs(message - factorMessages[k]));
+					factorMessages[k] = message;
+				}
+			}
+
+			iterations++;
+			converged = (maxDelta < CONVERGENCE_THRESHOLD);
+		}
+
+		computeBeliefs(beliefs, priorLogOdds, factorMessages, edgeProtein);
+
+		// posterior of each peptide: its evidence combined with the probability that no protein emits it
+		peptidePosteriors = new HashMap<String, Double>();
+		for (int i = 0; i < peptides.length; i++) {
+			double notEmitted = 1.0;
+			for (int k = edgeStart[i]; k < edgeStart[i + 1]; k++) {
+				notEmitted *= 1.0 - sigmoid(beliefs[edgeProtein[k]] - factorMessages[k]) * edgeDetectability[k];
+			}
+			double present = evidence[i] * (1.0 - notEmitted);
+			peptidePosteriors.put(graph.getPeptideSequence(peptides[i]),
+					present / (present + (1.0 - evidence[i]) * notEmitted));
+		}
+
+		// collect the reportable proteins and their peptides
+		Map<Integer, Set<String>> protPeptides = new HashMap<Integer, Set<String>>();
+		for (int i = 0; i < peptides.length; i++) {
+			for (int k = edgeStart[i]; k < edgeStart[i + 1]; k++) {
+				if (sigmoid(beliefs[edgeProtein[k]]) >= 0.5) {
+					Integer protID = proteins[edgeProtein[k]] + PeptideProteinGraph.PROTEIN_ID_OFFSET;
+					if (!protPeptides.containsKey(protID)) {
+						protPeptides.put(protID, new HashSet<String>());
+					}
+					protPeptides.get(protID).add(graph.getPeptideSequence(peptides[i]));
+				}
+			}
+		}
+
+		// group the proteins with same peptide sets
+		Map<String, Set<Integer>> peptidesToProtIDs = new HashMap<String, Set<Integer>>();
+		for (Map.Entry<Integer, Set<String>> protIt : protPeptides.entrySet()) {
+			String key = new TreeSet<String>(protIt.getValue()).toString();
+			if (!peptidesToProtIDs.containsKey(key)) {
+				peptidesToProtIDs.put(key, new TreeSet<Integer>());
+			}
+			peptidesToProtIDs.get(key).add(protIt.getKey());
+		}
+
+		HashMap<String, Number[]> proteinsMap = new HashMap<String, Number[]>();
+		for (Set<Integer> protIdSet : peptidesToProtIDs.values()) {
+			StringBuilder accs = new StringBuilder();
+			Integer firstID = null;
+			double groupProba = 0.0;
+			for (Integer protID : protIdSet) {
+				if (accs.length() > 0) {
+					accs.append(";");
+				} else {
+					firstID = protID;
+				}
+				accs.append(protID);
+
+				int localIdx = localProteins.get(protID - PeptideProteinGraph.PROTEIN_ID_OFFSET);
+				groupProba = Math.max(groupProba, sigmoid(beliefs[localIdx]));
+			}
+
+			proteinsMap.put(accs.toString(), MsBayesPro.getValuesFromPeptides(protPeptides.get(firstID), groupProba));
+		}
+
+		return proteinsMap;
+	}
+
+
+	/**
+	 * computes the log-odds of the proteins from the prior and the incoming messages
+	 */
+	private static void computeBeliefs(double[] beliefs, double priorLogOdds, double[] factorMessages,
+			int[] edgeProtein) {
+		for (int j = 0; j < beliefs.length; j++) {
+			beliefs[j] = priorLogOdds;
+		}
+		for (int k = 0; k < factorMessages.length; k++) {
+			beliefs[edgeProtein[k]] += factorMessages[k];
+		}
+	}
+
+
+	private static double sigmoid(double logOdds) {
+		return 1.0 / (1.0 + Math.exp(-logOdds));
+	}
+
+
+	/**
+	 * @return a map from the peptide sequences to their posterior probabilities of the last run
+	 */
+	public HashMap<String, Double> getPeptidePosteriors() {
+		return peptidePosteriors;
+	}
+
+
+	/**
+	 * @return the number of iterations of the last run
+	 */
+	public int getIterations() {
+		return iterations;
+	}
+
+
+	/**
+	 * @return whether the last run converged, i.e. it was not stopped by the iteration limit or the budget
+	 */
+	public boolean hasConverged() {
+		return converged;
+	}
+}
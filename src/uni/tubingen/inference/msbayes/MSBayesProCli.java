@@ -0,0 +1,411 @@
+package uni.tubingen.inference.msbayes;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Command-line entry point of the {@link MSBayesProEngine}, which runs without
+ * any KNIME installation. The PSMs are streamed from TSV or CSV files with a
+ * header line (the separator is detected from the header) or from idXML and
+ * mzIdentML files, and the inferred protein groups are written as TSV.
+ *
+ * @author julian
+ *
+ */
+public class MSBayesProCli {
+
+	private static final String USAGE =
+			"usage: java -cp msbayespro.jar " + MSBayesProCli.class.getName() + " [options] <psm file>...\n"
+			+ "options:\n"
+			+ "  -out <file>                   output file (default: standard output)\n"
+			+ "  -peptide-out <file>           also infer the peptide posteriors and write them into this file\n"
+			+ "  -executable <file>            the MSBayesPro executable (default: executables/ next to the jar)\n"
+			+ "  -threads <n>                  concurrent inference tasks, 0 for all processors (default: 0)\n"
+			+ "  -approximate-threshold <n>    approximate components with more proteins, 0 for never (default: "
+					+ MSBayesProEngine.DEFAULT_APPROXIMATE_THRESHOLD + ")\n"
+			+ "  -approximate-budget <s>       time budget per approximated component in seconds (default: "
+					+ MSBayesProEngine.DEFAULT_APPROXIMATE_BUDGET + ")\n"
+			+ "  -approximate-damping <d>      damping of the belief propagation (default: "
+					+ MSBayesProEngine.DEFAULT_APPROXIMATE_DAMPING + ")\n"
+			+ "  -checkpoint-dir <dir>         resume from and write checkpoints in this directory, unused ones expire after a week\n"
+			+ "  -scratch-dir <dir>            directory of the temporary files of MSBayesPro, e.g. /dev/shm\n"
+			+ "  -named-pipes <b>              pass the input to MSBayesPro through named pipes (default: false)\n"
+			+ "  -batch-proteins <n>           proteins per MSBayesPro run (shard) and checkpoint (default: "
+					+ MSBayesProEngine.DEFAULT_BATCH_PROTEINS + ")\n"
+			+ "  -workers <workers>            run MSBayesPro on worker processes (see " + ShardWorker.class.getSimpleName()
+					+ "): comma-separated host:port\n"
+			+ "                                addresses, or local:<n> to spawn n workers on this machine\n"
+			+ "  -worker-retries <n>           retries of a shard failed on a worker (default: "
+					+ RemoteShardExecutor.DEFAULT_RETRIES + ")\n"
+			+ "  -bootstrap-replicates <n>     bootstrap replicates of the PSMs, 0 for no bootstrap (default: 0)\n"
+			+ "  -bootstrap-confidence <c>     confidence level of the bootstrap lower bounds (default: "
+					+ MSBayesProEngine.DEFAULT_BOOTSTRAP_CONFIDENCE + ")\n"
+			+ "  -decoy-prefix <prefix>        prefix of the decoy accessions, for the protein q-values\n"
+			+ "  -fdr-cutoff <q>               only write protein groups with at most this q-value (default: 1)\n"
+			+ "  -bootstrap-seed <n>           seed of the bootstrap resampling (default: "
+					+ MSBayesProEngine.DEFAULT_BOOTSTRAP_SEED + ")\n"
+			+ "  -peptide-column <name>        (default: Peptides)\n"
+			+ "  -protein-column <name>        proteins separated by ';' (default: Protein)\n"
+			+ "  -probability-column <name>    (default: Probabilities)\n"
+			+ "  -detectability-column <name>  (default: Detectability)\n"
+			+ "idXML and mzIdentML files (by their extension) are read directly, with the options:\n"
+			+ "  -default-detectability <d>    detectability of hits without a '" + IdentificationFileReader.DETECTABILITY_PARAM
+					+ "' parameter (default: " + IdentificationFileReader.DEFAULT_DETECTABILITY + ")\n"
+			+ "  -mzid-score <name>            accession or name of the mzIdentML score (default: "
+					+ IdentificationFileReader.DEFAULT_MZID_SCORE + ")\n"
+			+ "  -mzid-error-probability <b>   whether the mzIdentML score is an error probability (default: true)\n";
+
+
+	public static void main(String[] args) {
+		try {
+			System.exit(run(args));
+		} catch (IllegalArgumentException e) {
+			System.err.println(e.getMessage());
+			System.err.print(USAGE);
+			System.exit(2);
+		} catch (Exception e) {
+			e.printStackTrace();
+			System.exit(1);
+		}
+	}
+
+
+	/**
+	 * Runs the inference with the given command-line arguments.
+	 *
+	 * @param args
+	 * @return the exit code
+	 * @throws Exception
+	 */
+	public static int run(String[] args) throws Exception {
+		Options options = new Options();
+		List<String> inputFiles = new ArrayList<String>();
+		for (int i = 0; i < args.length; i++) {
+			if (args[i].equals("-h") || args[i].equals("-help")) {
+				System.out.print(USAGE);
+				return 0;
+			} else if (args[i].startsWith("-") && (args[i].length() > 1)) {
+				if (i + 1 >= args.length) {
+					throw new IllegalArgumentException("missing value of option " + args[i]);
+				}
+				options.put(args[i], args[++i]);
+			} else {
+				inputFiles.add(args[i]);
+			}
+		}
+		if (inputFiles.isEmpty()) {
+			throw new IllegalArgumentException("no PSM file given");
+		}
+
+		String peptideColumn = options.remove("-peptide-column", "Peptides");
+		String proteinColumn = options.remove("-protein-column", "Protein");
+		String probabilityColumn = options.remove("-probability-column", "Probabilities");
+		String detectabilityColumn = options.remove("-detectability-column", "Detectability");
+
+		IdentificationFileReader idReader = new IdentificationFileReader(
+				Double.parseDouble(options.remove("-default-detectability", Double.toString(IdentificationFileReader.DEFAULT_DETECTABILITY))),
+				options.remove("-mzid-score", IdentificationFileReader.DEFAULT_MZID_SCORE),
+				Boolean.parseBoolean(options.remove("-mzid-error-probability", "true")));
+
+		PeptideProteinGraph graph = new PeptideProteinGraph();
+		for (String inputFile : inputFiles) {
+			if (IdentificationFileReader.isIdentificationFile(inputFile)) {
+				idReader.read(new File(inputFile), graph);
+				if (idReader.getNrSkipped() > 0) {
+					System.err.println("WARN: skipped " + idReader.getNrSkipped() + " hits without proteins or a valid score in " + inputFile);
+				}
+			} else {
+				readPSMFile(new File(inputFile), graph, peptideColumn, proteinColumn, probabilityColumn, detectabilityColumn);
+			}
+		}
+
+		MSBayesProEngine engine = new MSBayesProEngine(graph);
+		String executable = options.remove("-executable", null);
+		engine.setExecutable(executable);
+		engine.setNrThreads(Integer.parseInt(options.remove("-threads", "0")));
+		engine.setBatchProteins(Integer.parseInt(options.remove("-batch-proteins",
+				Integer.toString(MSBayesProEngine.DEFAULT_BATCH_PROTEINS))));
+		engine.setApproximateThreshold(Integer.parseInt(options.remove("-approximate-threshold",
+				Integer.toString(MSBayesProEngine.DEFAULT_APPROXIMATE_THRESHOLD))));
+		engine.setApproximateBudget(Integer.parseInt(options.remove("-approximate-budget",
+				Integer.toString(MSBayesProEngine.DEFAULT_APPROXIMATE_BUDGET))));
+		engine.setApproximateDamping(Double.parseDouble(options.remove("-approximate-damping",
+				Double.toString(MSBayesProEngine.DEFAULT_APPROXIMATE_DAMPING))));
+		String checkpointDir = options.remove("-checkpoint-dir", null);
+		if (checkpointDir != null) {
+			engine.setCheckpointDirectory(new File(checkpointDir));
+		}
+
+		String scratchDir = options.remove("-scratch-dir", null);
+		if (scratchDir != null) {
+			engine.setScratchDirectory(new File(scratchDir));
+		}
+		boolean useNamedPipes = Boolean.parseBoolean(options.remove("-named-pipes", "false"));
+		engine.setUseNamedPipes(useNamedPipes);
+
+		String workers = options.remove("-workers", null);
+		int workerRetries = Integer.parseInt(options.remove("-worker-retries", Integer.toString(RemoteShardExecutor.DEFAULT_RETRIES)));
+		if (workers != null) {
+			RemoteShardExecutor remoteExecutor = new RemoteShardExecutor(workers, workerRetries);
+			remoteExecutor.setLocalWorkerOptions(executable, (scratchDir != null) ? new File(scratchDir) : null, useNamedPipes);
+			engine.setShardExecutor(remoteExecutor);
+		}
+		engine.setBootstrapReplicates(Integer.parseInt(options.remove("-bootstrap-replicates", "0")));
+		engine.setBootstrapConfidence(Double.parseDouble(options.remove("-bootstrap-confidence",
+				Double.toString(MSBayesProEngine.DEFAULT_BOOTSTRAP_CONFIDENCE))));
+		engine.setBootstrapSeed(Long.parseLong(options.remove("-bootstrap-seed",
+				Long.toString(MSBayesProEngine.DEFAULT_BOOTSTRAP_SEED))));
+
+		ProteinFDR fdr = new ProteinFDR(options.remove("-decoy-prefix", null));
+		double fdrCutoff = Double.parseDouble(options.remove("-fdr-cutoff", "1"));
+
+		String outputFile = options.remove("-out", null);
+		String peptideOutputFile = options.remove("-peptide-out", null);
+		engine.setPeptidePosteriors(peptideOutputFile != null);
+		if (!options.isEmpty()) {
+			throw new IllegalArgumentException("unknown options: " + options.keySet());
+		}
+
+		InferenceResult result = engine.run(createMonitor());
+
+		PrintWriter pw = new PrintWriter(new OutputStreamWriter(
+				(outputFile != null) ? new FileOutputStream(outputFile) : System.out, "UTF-8"));
+		fdr.compute(result);
+		writeResult(pw, result, fdr, fdrCutoff);
+		pw.flush();
+		if (outputFile != null) {
+			pw.close();
+		}
+		boolean error = pw.checkError();
+
+		if (peptideOutputFile != null) {
+			pw = new PrintWriter(new OutputStreamWriter(new FileOutputStream(peptideOutputFile), "UTF-8"));
+			writePeptides(pw, result);
+			pw.close();
+			error |= pw.checkError();
+		}
+
+		return error ? 1 : 0;
+	}
+
+
+	/**
+	 * Reads the PSMs of a TSV or CSV file into the graph. Rows with missing
+	 * values are skipped, like in the node.
+	 *
+	 * @param file
+	 * @param graph
+	 * @param peptideColumn
+	 * @param proteinColumn
+	 * @param probabilityColumn
+	 * @param detectabilityColumn
+	 * @throws IOException
+	 */
+	public static void readPSMFile(File file, PeptideProteinGraph graph, String peptideColumn,
+			String proteinColumn, String probabilityColumn, String detectabilityColumn) throws IOException {
+		BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+		try {
+			String line = reader.readLine();
+			if (line == null) {
+				return;
+			}
+
+			char separator = (line.indexOf('\t') >= 0) ? '\t' : ',';
+			List<String> header = Arrays.asList(splitLine(line, separator));
+			int pepIdx = findColumn(header, peptideColumn, file);
+			int accsnIdx = findColumn(header, proteinColumn, file);
+			int probaIdx = findColumn(header, probabilityColumn, file);
+			int detectIdx = findColumn(header, detectabilityColumn, file);
+
+			int lineNr = 1;
+			while ((line = reader.readLine()) != null) {
+				lineNr++;
+				if (line.trim().length() == 0) {
+					continue;
+				}
+
+				String[] fields = splitLine(line, separator);
+				if ((fields.length <= Math.max(Math.max(pepIdx, accsnIdx), Math.max(probaIdx, detectIdx)))
+						|| (fields[pepIdx].length() == 0) || (fields[accsnIdx].length() == 0)
+						|| (fields[probaIdx].length() == 0) || (fields[detectIdx].length() == 0)) {
+					continue;
+				}
+
+				try {
+					graph.addPSM(fields[pepIdx], fields[accsnIdx].split(";"),
+							Double.parseDouble(fields[probaIdx]), Double.parseDouble(fields[detectIdx]));
+				} catch (NumberFormatException e) {
+					throw new IOException("invalid number in " + file + ", line " + lineNr + ": " + e.getMessage());
+				}
+			}
+		} finally {
+			reader.close();
+		}
+	}
+
+
+	private static int findColumn(List<String> header, String column, File file) throws IOException {
+		int idx = header.indexOf(column);
+		if (idx < 0) {
+			throw new IOException("column '" + column + "' not found in " + file + ", columns are " + header);
+		}
+		return idx;
+	}
+
+
+	/**
+	 * splits a line at the separator, fields may be quoted with '"' (and quotes doubled inside)
+	 */
+	private static String[] splitLine(String line, char separator) {
+		List<String> fields = new ArrayList<String>();
+		StringBuilder field = new StringBuilder();
+		boolean quoted = false;
+
+		for (int i = 0; i < line.length(); i++) {
+			char c = line.charAt(i);
+			if (quoted) {
+				if ((c == '"') && (i + 1 < line.length()) && (line.charAt(i + 1) == '"')) {
+					field.append('"');
+					i++;
+				} else if (c == '"') {
+					quoted = false;
+				} else {
+					field.append(c);
+				}
+			} else if (c == '"') {
+				quoted = true;
+			} else if (c == separator) {
+				fields.add(field.toString());
+				field.setLength(0);
+			} else {
+				field.append(c);
+			}
+		}
+		fields.add(field.toString());
+
+		return fields.toArray(new String[fields.size()]);
+	}
+
+
+	/**
+	 * writes the protein groups as TSV by descending probability, with the same columns as the node's output table
+	 *
+	 * @param pw
+	 * @param result
+	 * @param fdr the computed order and q-values of the groups
+	 * @param fdrCutoff only groups with at most this q-value are written
+	 */
+	public static void writeResult(PrintWriter pw, InferenceResult result, ProteinFDR fdr, double fdrCutoff) {
+		pw.println("Protein ID\tMSBayes Probability\tnrPeptidesMod\tnrPeptides\tApproximate"
+				+ "\tBootstrap Mean\tBootstrap Lower Bound\tBootstrap Replicates\tDecoy\tq-value");
+
+		HashMap<String, Number[]> proteinMap = result.getProteinsMap();
+		int nrAccepted = fdr.getNrAccepted(fdrCutoff);
+		for (int g = 0; g < nrAccepted; g++) {
+			String proteinIDs = fdr.getProteinIDs(g);
+			Number[] values = proteinMap.get(proteinIDs);
+			pw.println(result.getGraph().getProteinAccessions(proteinIDs)
+					+ "\t" + values[0].doubleValue()
+					+ "\t" + values[1].intValue()
+					+ "\t" + values[2].intValue()
+					+ "\t" + result.isApproximate(proteinIDs)
+					+ formatBootstrap(result.getBootstrap(proteinIDs))
+					+ "\t" + fdr.isDecoy(g)
+					+ "\t" + (fdr.hasQValues() ? Double.toString(fdr.getQValue(g)) : ""));
+		}
+	}
+
+
+	/**
+	 * @return the bootstrap columns, empty fields for missing values
+	 */
+	private static String formatBootstrap(Number[] bootstrap) {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < 2; i++) {
+			sb.append("\t");
+			if ((bootstrap != null) && !Double.isNaN(bootstrap[i].doubleValue())) {
+				sb.append(bootstrap[i].doubleValue());
+			}
+		}
+		sb.append("\t");
+		if (bootstrap != null) {
+			sb.append(bootstrap[2].intValue());
+		}
+		return sb.toString();
+	}
+
+
+	/**
+	 * writes the peptide posteriors as TSV, with the same columns as the node's second output table
+	 *
+	 * @param pw
+	 * @param result
+	 */
+	public static void writePeptides(PrintWriter pw, InferenceResult result) {
+		pw.println("Peptide\tMSBayes Posterior Probability\tApproximate");
+
+		HashMap<String, Double> peptideMap = result.getPeptidePosteriors();
+		for (String peptide : peptideMap.keySet()) {
+			pw.println(peptide + "\t" + peptideMap.get(peptide) + "\t" + result.isApproximatePeptide(peptide));
+		}
+	}
+
+
+	/**
+	 * @return a monitor writing the messages to the standard error stream, it never cancels
+	 */
+	static InferenceMonitor createMonitor() {
+		return new InferenceMonitor() {
+			@Override
+			public void checkCanceled() throws Exception {
+				// the command-line run is stopped by killing the JVM
+			}
+
+			@Override
+			public void setProgress(double fraction, String message) {
+				// no progress on the command line
+			}
+
+			@Override
+			public void info(String message) {
+				System.err.println("INFO: " + message);
+			}
+
+			@Override
+			public void warn(String message) {
+				System.err.println("WARN: " + message);
+			}
+
+			@Override
+			public void error(String message, Throwable t) {
+				System.err.println("ERROR: " + message);
+				if (t != null) {
+					t.printStackTrace();
+				}
+			}
+		};
+	}
+
+
+	/**
+	 * the parsed options, each option is removed when it is used
+	 */
+	private static class Options extends HashMap<String, String> {
+		private static final long serialVersionUID = 1L;
+
+		private String remove(String option, String defaultValue) {
+			String value = remove(option);
+			return (value != null) ? value : defaultValue;
+		}
+	}
+}
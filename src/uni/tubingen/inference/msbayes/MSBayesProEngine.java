@@ -0,0 +1,653 @@
+package uni.tubingen.inference.msbayes;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * The protein inference on a peptide-protein graph, independent of KNIME. It
+ * is used by the {@link MSBayesProNodeModel} as well as by the command-line
+ * tool {@link MSBayesProCli}.
+ * <p>
+ * The graph is split into its connected components. Components with more
+ * proteins than the approximation threshold are inferred by
+ * {@link LoopyBeliefPropagation}, all others are passed in batches (shards)
+ * to MSBayesPro, which is run by a {@link ShardExecutor} on this machine or on
+ * remote workers. The batches and approximations run concurrently on the
+ * configured number of threads and are checkpointed, if a checkpoint directory
+ * is given. The checkpoint log is deleted after a completed run, unused logs
+ * of the directory once they were not written for a week.
+ * <p>
+ * Optionally, the inference is repeated on bootstrap replicates of the PSMs,
+ * which run on the same threads, to estimate lower confidence bounds of the
+ * protein probabilities (see {@link ProteinBootstrap}).
+ *
+ * @author julian
+ *
+ */
+public class MSBayesProEngine {
+
+	/** default number of proteins passed to MSBayesPro at once, i.e. between two checkpoints */
+	public static final int DEFAULT_BATCH_PROTEINS = 2000;
+
+	/** default number of proteins, above which a component is inferred approximately */
+	public static final int DEFAULT_APPROXIMATE_THRESHOLD = 1000;
+
+	/** default wall-clock budget of an approximate inference in seconds */
+	public static final int DEFAULT_APPROXIMATE_BUDGET = 60;
+
+	/** default damping of the belief propagation */
+	public static final double DEFAULT_APPROXIMATE_DAMPING = 0.5;
+
+	/** default confidence level of the bootstrap lower bounds */
+	public static final double DEFAULT_BOOTSTRAP_CONFIDENCE = 0.95;
+
+	/** default seed of the bootstrap resampling */
+	public static final long DEFAULT_BOOTSTRAP_SEED = 42L;
+
+	// descriptions of the inference, part of the checkpoint keys
+	private static final String EXACT_INFERENCE = "MSBayesPro";
+	private static final String APPROXIMATE_INFERENCE = "LBP:";
+	private static final String PEPTIDE_INFERENCE = "+peptides";
+
+	// how long a cancelled run waits for its tasks to stop
+	private static final long TASK_STOP_TIMEOUT_SECONDS = 30;
+
+
+	private final PeptideProteinGraph graph;
+
+	private String executable;
+
+	private int nrThreads;
+
+	private int batchProteins;
+
+	private int approximateThreshold;
+
+	private int approximateBudget;
+
+	private double approximateDamping;
+
+	private File checkpointDirectory;
+
+	private File checkpointFile;
+
+	private File scratchDirectory;
+
+	private boolean useNamedPipes;
+
+	private ShardExecutor shardExecutor;
+
+	private boolean peptidePosteriors;
+
+	private int bootstrapReplicates;
+
+	private double bootstrapConfidence;
+
+	private long bootstrapSeed;
+
+
+	/**
+	 * Constructor
+	 *
+	 * @param graph the peptide-protein graph to infer
+	 */
+	public MSBayesProEngine(PeptideProteinGraph graph) {
+		this.graph = graph;
+		this.executable = null;
+		this.nrThreads = 0;
+		this.batchProteins = DEFAULT_BATCH_PROTEINS;
+		this.approximateThreshold = DEFAULT_APPROXIMATE_THRESHOLD;
+		this.approximateBudget = DEFAULT_APPROXIMATE_BUDGET;
+		this.approximateDamping = DEFAULT_APPROXIMATE_DAMPING;
+		this.checkpointDirectory = null;
+		this.checkpointFile = null;
+		this.scratchDirectory = null;
+		this.useNamedPipes = false;
+		this.shardExecutor = null;
+		this.peptidePosteriors = false;
+		this.bootstrapReplicates = 0;
+		this.bootstrapConfidence = DEFAULT_BOOTSTRAP_CONFIDENCE;
+		this.bootstrapSeed = DEFAULT_BOOTSTRAP_SEED;
+	}
+
+
+	/**
+	 * @param executable the path to the MSBayesPro executable, null for the one shipped with the plugin
+	 */
+	public void setExecutable(String executable) {
+		this.executable = executable;
+	}
+
+
+	/**
+	 * @param nrThreads the number of concurrent inference tasks, 0 for the number of available processors
+	 */
+	public void setNrThreads(int nrThreads) {
+		this.nrThreads = nrThreads;
+	}
+
+
+	public void setBatchProteins(int batchProteins) {
+		this.batchProteins = batchProteins;
+	}
+
+
+	/**
+	 * @param approximateThreshold components with more proteins are inferred approximately, 0 for never
+	 */
+	public void setApproximateThreshold(int approximateThreshold) {
+		this.approximateThreshold = approximateThreshold;
+	}
+
+
+	/**
+	 * @param approximateBudget the wall-clock budget of an approximate inference in seconds
+	 */
+	public void setApproximateBudget(int approximateBudget) {
+		this.approximateBudget = approximateBudget;
+	}
+
+
+	public void setApproximateDamping(double approximateDamping) {
+		this.approximateDamping = approximateDamping;
+	}
+
+
+	/**
+	 * @param checkpointDirectory the directory of the checkpoint logs, null for no checkpointing
+	 */
+	public void setCheckpointDirectory(File checkpointDirectory) {
+		this.checkpointDirectory = checkpointDirectory;
+	}
+
+
+	/**
+	 * @return the checkpoint log of the last run, also if it failed, null without checkpointing
+	 */
+	public File getCheckpointFile() {
+		return checkpointFile;
+	}
+
+
+	/**
+	 * @param scratchDirectory the directory of the temporary files of MSBayesPro (e.g. a RAM disk like /dev/shm),
+	 *            null for the default temporary directory
+	 */
+	public void setScratchDirectory(File scratchDirectory) {
+		this.scratchDirectory = scratchDirectory;
+	}
+
+
+	/**
+	 * @param useNamedPipes whether the inputs are passed to MSBayesPro through named pipes instead of files
+	 */
+	public void setUseNamedPipes(boolean useNamedPipes) {
+		this.useNamedPipes = useNamedPipes;
+	}
+
+
+	/**
+	 * @param shardExecutor executes the batches of MSBayesPro, null for a {@link LocalShardExecutor} with the
+	 *            configured executable, scratch directory and named pipes
+	 */
+	public void setShardExecutor(ShardExecutor shardExecutor) {
+		this.shardExecutor = shardExecutor;
+	}
+
+
+	/**
+	 * @param peptidePosteriors whether the posterior probabilities of the peptides are inferred as well
+	 */
+	public void setPeptidePosteriors(boolean peptidePosteriors) {
+		this.peptidePosteriors = peptidePosteriors;
+	}
+
+
+	/**
+	 * @param bootstrapReplicates the number of bootstrap replicates, 0 for no bootstrap
+	 */
+	public void setBootstrapReplicates(int bootstrapReplicates) {
+		this.bootstrapReplicates = bootstrapReplicates;
+	}
+
+
+	/**
+	 * @param bootstrapConfidence the confidence level of the bootstrap lower bounds, e.g. 0.95
+	 */
+	public void setBootstrapConfidence(double bootstrapConfidence) {
+		this.bootstrapConfidence = bootstrapConfidence;
+	}
+
+
+	public void setBootstrapSeed(long bootstrapSeed) {
+		this.bootstrapSeed = bootstrapSeed;
+	}
+
+
+	/**
+	 * Runs the inference on all components of the graph.
+	 *
+	 * @param monitor
+	 * @return the reported protein groups, peptide posteriors and bootstrap statistics
+	 * @throws Exception
+	 */
+	public InferenceResult run(InferenceMonitor monitor) throws Exception {
+		// giant components are inferred approximately, all others by MSBayesPro
+		List<PeptideProteinGraph.Component> exactComponents = new ArrayList<PeptideProteinGraph.Component>();
+		List<PeptideProteinGraph.Component> approximateComponents = new ArrayList<PeptideProteinGraph.Component>();
+		for (PeptideProteinGraph.Component component : graph.getConnectedComponents()) {
+			if ((approximateThreshold > 0) && (component.size() > approximateThreshold)) {
+				approximateComponents.add(component);
+			} else {
+				exactComponents.add(component);
+			}
+		}
+
+		// the keys identify the components in the checkpoint of this input
+		String exactInference = EXACT_INFERENCE;
+		String approximateInference = APPROXIMATE_INFERENCE + approximateDamping + ":" + approximateBudget;
+		if (peptidePosteriors) {
+			exactInference += PEPTIDE_INFERENCE;
+			approximateInference += PEPTIDE_INFERENCE;
+		}
+		List<String> exactKeys = new ArrayList<String>();
+		for (PeptideProteinGraph.Component component : exactComponents) {
+			exactKeys.add(InferenceCheckpoint.getComponentKey(graph, component, exactInference));
+		}
+		List<String> approximateKeys = new ArrayList<String>();
+		for (PeptideProteinGraph.Component component : approximateComponents) {
+			approximateKeys.add(InferenceCheckpoint.getComponentKey(graph, component, approximateInference));
+		}
+
+		InferenceCheckpoint checkpoint = null;
+		if (checkpointDirectory != null) {
+			List<String> allKeys = new ArrayList<String>(exactKeys);
+			allKeys.addAll(approximateKeys);
+			checkpointFile = new File(checkpointDirectory,
+					InferenceCheckpoint.getRunKey(allKeys) + InferenceCheckpoint.FILE_SUFFIX);
+			try {
+				checkpoint = new InferenceCheckpoint(checkpointFile);
+			} catch (IOException e) {
+				// e.g. the same input is inferred by another run right now
+				monitor.warn("running without checkpoint: " + e.getMessage());
+			}
+			// the own log is open, so only the logs of runs, which were never resumed, are deleted
+			InferenceCheckpoint.deleteExpired(checkpointDirectory, InferenceCheckpoint.DEFAULT_MAX_AGE_MILLIS);
+			if ((checkpoint != null) && (checkpoint.getNrCompleted() > 0)) {
+				monitor.info("resuming from checkpoint " + checkpointFile + " with " + checkpoint.getNrCompleted()
+						+ " of " + allKeys.size() + " completed components");
+			}
+		}
+
+		InferenceResult result = new InferenceResult(graph);
+
+		ShardExecutor shards = (shardExecutor != null)
+				? shardExecutor : new LocalShardExecutor(executable, scratchDirectory, useNamedPipes);
+
+		ExecutorService executor = null;
+		try {
+			shards.start(monitor);
+
+			// the threads waiting for the shard executor's slots come on top of the local threads
+			int threads = (nrThreads > 0) ? nrThreads : Runtime.getRuntime().availableProcessors();
+			executor = Executors.newFixedThreadPool(threads + shards.getNrSlots());
+
+			List<Future<InferenceResult>> approximateResults = new ArrayList<Future<InferenceResult>>();
+			List<Future<InferenceResult>> exactResults = new ArrayList<Future<InferenceResult>>();
+
+			// the approximations are the longest tasks, so they are started first
+			for (int i = 0; i < approximateComponents.size(); i++) {
+				String key = approximateKeys.get(i);
+				if ((checkpoint != null) && checkpoint.isCompleted(key)) {
+					result.addProteins(checkpoint.getResult(key, graph), true);
+					result.addPeptides(checkpoint.getPeptideResult(key), true);
+				} else {
+					approximateResults.add(executor.submit(
+							createApproximateInference(approximateComponents.get(i), key, checkpoint, monitor)));
+				}
+			}
+			if (approximateResults.size() > 0) {
+				monitor.info(approximateResults.size() + " components with more than " + approximateThreshold
+						+ " proteins are inferred approximately");
+			}
+
+			// the remaining exact components are passed to MSBayesPro in batches
+			List<PeptideProteinGraph.Component> pendingComponents = new ArrayList<PeptideProteinGraph.Component>();
+			List<String> pendingKeys = new ArrayList<String>();
+			for (int i = 0; i < exactComponents.size(); i++) {
+				String key = exactKeys.get(i);
+				if ((checkpoint != null) && checkpoint.isCompleted(key)) {
+					result.addProteins(checkpoint.getResult(key, graph), false);
+					result.addPeptides(checkpoint.getPeptideResult(key), false);
+				} else {
+					pendingComponents.add(exactComponents.get(i));
+					pendingKeys.add(key);
+				}
+			}
+			for (List<Integer> batchIndices : createBatches(pendingComponents)) {
+				List<PeptideProteinGraph.Component> batch = new ArrayList<PeptideProteinGraph.Component>();
+				List<String> batchKeys = new ArrayList<String>();
+				for (int i : batchIndices) {
+					batch.add(pendingComponents.get(i));
+					batchKeys.add(pendingKeys.get(i));
+				}
+				exactResults.add(executor.submit(createExactInference(shards, batch, batchKeys, checkpoint)));
+			}
+
+			// the bootstrap replicates are queued behind the inference on the original PSMs
+			List<List<Future<HashMap<String, Number[]>>>> bootstrapResults = new ArrayList<List<Future<HashMap<String, Number[]>>>>();
+			if (bootstrapReplicates > 0) {
+				List<List<Integer>> bootstrapBatches = createBatches(exactComponents);
+				Random seeds = new Random(bootstrapSeed);
+				for (int replicate = 0; replicate < bootstrapReplicates; replicate++) {
+					List<Future<HashMap<String, Number[]>>> replicateResults = new ArrayList<Future<HashMap<String, Number[]>>>();
+					for (PeptideProteinGraph.Component component : approximateComponents) {
+						replicateResults.add(executor.submit(createBootstrapInference(
+								shards, Collections.singletonList(component), true, seeds.nextLong())));
+					}
+					for (List<Integer> batchIndices : bootstrapBatches) {
+						List<PeptideProteinGraph.Component> batch = new ArrayList<PeptideProteinGraph.Component>();
+						for (int i : batchIndices) {
+							batch.add(exactComponents.get(i));
+						}
+						replicateResults.add(executor.submit(createBootstrapInference(shards, batch, false, seeds.nextLong())));
+					}
+					bootstrapResults.add(replicateResults);
+				}
+			}
+
+			int nrTasks = exactResults.size() + approximateResults.size();
+			for (List<Future<HashMap<String, Number[]>>> replicateResults : bootstrapResults) {
+				nrTasks += replicateResults.size();
+			}
+			int nrDone = 0;
+			for (Future<InferenceResult> exactResult : exactResults) {
+				monitor.setProgress((double) nrDone / nrTasks, "inferring components with MSBayesPro");
+				InferenceResult batchResult = waitForResult(exactResult, monitor);
+				result.addProteins(batchResult.getProteinsMap(), false);
+				result.addPeptides(batchResult.getPeptidePosteriors(), false);
+				nrDone++;
+			}
+			for (Future<InferenceResult> approximateResult : approximateResults) {
+				monitor.setProgress((double) nrDone / nrTasks, "waiting for the approximate inference");
+				InferenceResult componentResult = waitForResult(approximateResult, monitor);
+				result.addProteins(componentResult.getProteinsMap(), true);
+				result.addPeptides(componentResult.getPeptidePosteriors(), true);
+				nrDone++;
+			}
+
+			if (bootstrapReplicates > 0) {
+				ProteinBootstrap bootstrap = new ProteinBootstrap(result, bootstrapReplicates);
+				for (int replicate = 0; replicate < bootstrapResults.size(); replicate++) {
+					for (Future<HashMap<String, Number[]>> replicateResult : bootstrapResults.get(replicate)) {
+						monitor.setProgress((double) nrDone / nrTasks,
+								"bootstrap replicate " + (replicate + 1) + " of " + bootstrapReplicates);
+						bootstrap.addReplicate(replicate, waitForResult(replicateResult, monitor));
+						nrDone++;
+					}
+				}
+				bootstrap.computeBounds(bootstrapConfidence);
+			}
+
+			// the run is complete, there is nothing left to resume
+			if (checkpoint != null) {
+				checkpoint.delete();
+			}
+		} finally {
+			if (executor != null) {
+				// interrupts the tasks, which stop their MSBayesPro processes, and waits for them,
+				// so none of them appends to the checkpoint after it is closed
+				executor.shutdownNow();
+				awaitTermination(executor, monitor);
+			}
+			shards.shutdown();
+			if (checkpoint != null) {
+				checkpoint.close();
+			}
+		}
+
+		return result;
+	}
+
+
+	/**
+	 * Splits the components into batches for MSBayesPro, each batch has at
+	 * least the configured number of proteins (except the last one).
+	 *
+	 * @param components
+	 * @return the indices of the components in each batch
+	 */
+	private List<List<Integer>> createBatches(List<PeptideProteinGraph.Component> components) {
+		List<List<Integer>> batches = new ArrayList<List<Integer>>();
+		List<Integer> batch = new ArrayList<Integer>();
+		int nrBatchProteins = 0;
+		for (int i = 0; i < components.size(); i++) {
+			batch.add(i);
+			nrBatchProteins += components.get(i).size();
+
+			if ((nrBatchProteins >= batchProteins) || (i == components.size() - 1)) {
+				batches.add(batch);
+				batch = new ArrayList<Integer>();
+				nrBatchProteins = 0;
+			}
+		}
+		return batches;
+	}
+
+
+	/**
+	 * creates the task running MSBayesPro on a batch of components, the results are appended to the checkpoint
+	 *
+	 * @param shards
+	 * @param batch
+	 * @param batchKeys
+	 * @param checkpoint
+	 * @return
+	 */
+	private Callable<InferenceResult> createExactInference(final ShardExecutor shards,
+			final List<PeptideProteinGraph.Component> batch, final List<String> batchKeys,
+			final InferenceCheckpoint checkpoint) {
+		return new Callable<InferenceResult>() {
+			@Override
+			public InferenceResult call() throws Exception {
+				InferenceResult batchResult = shards.execute(graph, batch, peptidePosteriors);
+
+				if (checkpoint != null) {
+					List<HashMap<String, Number[]>> componentMaps = splitIntoComponents(batchResult.getProteinsMap(), batch);
+					List<HashMap<String, Double>> componentPeptides =
+							splitPeptidesIntoComponents(batchResult.getPeptidePosteriors(), batch);
+					for (int i = 0; i < batch.size(); i++) {
+						checkpoint.append(batchKeys.get(i), componentMaps.get(i), componentPeptides.get(i), false, graph);
+					}
+					checkpoint.sync();
+				}
+
+				return batchResult;
+			}
+		};
+	}
+
+
+	/**
+	 * creates the task inferring the given components on a bootstrap replicate of their PSMs, it is not checkpointed
+	 *
+	 * @param shards
+	 * @param components
+	 * @param approximate whether the (single) component is inferred approximately
+	 * @param seed the seed of the resampling
+	 * @return
+	 */
+	private Callable<HashMap<String, Number[]>> createBootstrapInference(final ShardExecutor shards,
+			final List<PeptideProteinGraph.Component> components, final boolean approximate, final long seed) {
+		return new Callable<HashMap<String, Number[]>>() {
+			@Override
+			public HashMap<String, Number[]> call() throws Exception {
+				PeptideProteinGraph replicate = graph.resamplePSMs(components, new Random(seed));
+
+				if (approximate) {
+					LoopyBeliefPropagation bp = new LoopyBeliefPropagation(replicate, components.get(0),
+							approximateDamping, 1000L * approximateBudget);
+					return bp.computeProteinInference();
+				}
+				return shards.execute(replicate, components, false).getProteinsMap();
+			}
+		};
+	}
+
+
+	/**
+	 * splits the results of a batch into the results of its components, all proteins of a group are in the same component
+	 *
+	 * @param batchMap
+	 * @param batch
+	 * @return
+	 */
+	private static List<HashMap<String, Number[]>> splitIntoComponents(HashMap<String, Number[]> batchMap,
+			List<PeptideProteinGraph.Component> batch) {
+		HashMap<Integer, Integer> proteinComponents = new HashMap<Integer, Integer>();
+		List<HashMap<String, Number[]>> componentMaps = new ArrayList<HashMap<String, Number[]>>();
+		for (int i = 0; i < batch.size(); i++) {
+			for (int protIdx : batch.get(i).getProteins()) {
+				proteinComponents.put(protIdx + PeptideProteinGraph.PROTEIN_ID_OFFSET, i);
+			}
+			componentMaps.add(new HashMap<String, Number[]>());
+		}
+
+		for (String proteinIDs : batchMap.keySet()) {
+			Integer firstID = Integer.parseInt(proteinIDs.split(";")[0]);
+			componentMaps.get(proteinComponents.get(firstID)).put(proteinIDs, batchMap.get(proteinIDs));
+		}
+
+		return componentMaps;
+	}
+
+
+	/**
+	 * splits the peptide posteriors of a batch into the posteriors of its components
+	 *
+	 * @param posteriors
+	 * @param batch
+	 * @return
+	 */
+	private List<HashMap<String, Double>> splitPeptidesIntoComponents(HashMap<String, Double> posteriors,
+			List<PeptideProteinGraph.Component> batch) {
+		HashMap<Integer, Integer> peptideComponents = new HashMap<Integer, Integer>();
+		List<HashMap<String, Double>> componentPeptides = new ArrayList<HashMap<String, Double>>();
+		for (int i = 0; i < batch.size(); i++) {
+			for (int pepIdx : batch.get(i).getPeptides()) {
+				peptideComponents.put(pepIdx, i);
+			}
+			componentPeptides.add(new HashMap<String, Double>());
+		}
+
+		for (String peptide : posteriors.keySet()) {
+			Integer component = peptideComponents.get(graph.getPeptideIndex(peptide));
+			if (component != null) {
+				componentPeptides.get(component).put(peptide, posteriors.get(peptide));
+			}
+		}
+
+		return componentPeptides;
+	}
+
+
+	/**
+	 * creates the task for the approximate inference of the given component, the result is appended to the checkpoint
+	 *
+	 * @param component
+	 * @param key
+	 * @param checkpoint
+	 * @param monitor
+	 * @return
+	 */
+	private Callable<InferenceResult> createApproximateInference(final PeptideProteinGraph.Component component,
+			final String key, final InferenceCheckpoint checkpoint, final InferenceMonitor monitor) {
+		final LoopyBeliefPropagation bp = new LoopyBeliefPropagation(graph, component,
+				approximateDamping, 1000L * approximateBudget);
+
+		return new Callable<InferenceResult>() {
+			@Override
+			public InferenceResult call() throws Exception {
+				InferenceResult result = new InferenceResult(graph);
+				result.addProteins(bp.computeProteinInference(), true);
+				if (peptidePosteriors) {
+					result.addPeptides(bp.getPeptidePosteriors(), true);
+				}
+				if (!bp.hasConverged()) {
+					monitor.warn("approximate inference of component with " + component.size()
+							+ " proteins did not converge in " + bp.getIterations() + " iterations");
+				}
+				if ((checkpoint != null) && !Thread.currentThread().isInterrupted()) {
+					// an interrupted inference is not complete
+					checkpoint.append(key, result.getProteinsMap(), result.getPeptidePosteriors(), true, graph);
+					checkpoint.sync();
+				}
+				return result;
+			}
+		};
+	}
+
+
+	/**
+	 * waits for the interrupted tasks to stop, even if the calling thread is interrupted itself
+	 *
+	 * @param executor
+	 * @param monitor
+	 */
+	private static void awaitTermination(ExecutorService executor, InferenceMonitor monitor) {
+		boolean interrupted = false;
+		try {
+			while (true) {
+				try {
+					if (!executor.awaitTermination(TASK_STOP_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+						monitor.warn("inference tasks did not stop within " + TASK_STOP_TIMEOUT_SECONDS + " seconds");
+					}
+					return;
+				} catch (InterruptedException e) {
+					interrupted = true;
+				}
+			}
+		} finally {
+			if (interrupted) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+
+	/**
+	 * waits for the result of the background task, while checking for cancellation
+	 *
+	 * @param result
+	 * @param monitor
+	 * @return
+	 * @throws Exception
+	 */
+	private static <T> T waitForResult(Future<T> result, InferenceMonitor monitor) throws Exception {
+		while (true) {
+			monitor.checkCanceled();
+			try {
+				return result.get(100, TimeUnit.MILLISECONDS);
+			} catch (TimeoutException e) {
+				// not yet done, check for cancellation again
+			} catch (ExecutionException e) {
+				if (e.getCause() instanceof Exception) {
+					throw (Exception) e.getCause();
+				}
+				throw e;
+			}
+		}
+	}
+}
@@ -1,12 +1,22 @@
 package uni.tubingen.inference.msbayes;
 
+import javax.swing.event.ChangeEvent;
+import javax.swing.event.ChangeListener;
+
 import org.knime.core.data.DataColumnSpec;
 import org.knime.core.data.DoubleValue;
 import org.knime.core.data.StringValue;
+import org.knime.core.node.InvalidSettingsException;
 import org.knime.core.node.defaultnodesettings.DefaultNodeSettingsPane;
+import org.knime.core.node.defaultnodesettings.DialogComponentBoolean;
 import org.knime.core.node.defaultnodesettings.DialogComponentColumnNameSelection;
+import org.knime.core.node.defaultnodesettings.DialogComponentFileChooser;
 import org.knime.core.node.defaultnodesettings.DialogComponentNumber;
+import org.knime.core.node.defaultnodesettings.DialogComponentString;
+import org.knime.core.node.defaultnodesettings.DialogComponentStringSelection;
+import org.knime.core.node.defaultnodesettings.SettingsModelBoolean;
 import org.knime.core.node.defaultnodesettings.SettingsModelDoubleBounded;
+import org.knime.core.node.defaultnodesettings.SettingsModelIntegerBounded;
 import org.knime.core.node.defaultnodesettings.SettingsModelString;
 import org.knime.core.node.util.ColumnFilter;
 
@@ -36,6 +46,26 @@ public class MSBayesProNodeDialog extends DefaultNodeSettingsPane {
         final SettingsModelString detectability     = new SettingsModelString(MSBayesProNodeModel.CFGKEY_DETECTABILITY, "Detectabilities");
         
 
+        //input from table or directly from idXML/mzIdentML file...
+        final SettingsModelString input_mode = new SettingsModelString(MSBayesProNodeModel.CFGKEY_INPUT_MODE, MSBayesProNodeModel.INPUT_MODE_TABLE);
+        final SettingsModelString input_file = new SettingsModelString(MSBayesProNodeModel.CFGKEY_INPUT_FILE, "");
+        final SettingsModelDoubleBounded default_detectability = new SettingsModelDoubleBounded(MSBayesProNodeModel.CFGKEY_DEFAULT_DETECTABILITY,
+        		IdentificationFileReader.DEFAULT_DETECTABILITY, 0.0, 1.0);
+        final SettingsModelString mzid_score = new SettingsModelString(MSBayesProNodeModel.CFGKEY_MZID_SCORE, IdentificationFileReader.DEFAULT_MZID_SCORE);
+        final SettingsModelBoolean mzid_error_probability = new SettingsModelBoolean(MSBayesProNodeModel.CFGKEY_MZID_ERROR_PROBABILITY, true);
+        
+        addDialogComponent(new DialogComponentStringSelection(input_mode, "Read PSMs from", 
+        		MSBayesProNodeModel.INPUT_MODE_TABLE, MSBayesProNodeModel.INPUT_MODE_FILE));
+        
+        // the file is only chosen (and validated) when the PSMs are read from it
+        input_mode.addChangeListener(new ChangeListener() {
+			@Override
+			public void stateChanged(ChangeEvent e) {
+				input_file.setEnabled(MSBayesProNodeModel.INPUT_MODE_FILE.equals(input_mode.getStringValue()));
+			}
+		});
+        input_file.setEnabled(MSBayesProNodeModel.INPUT_MODE_FILE.equals(input_mode.getStringValue()));
+        
         addDialogComponent(new DialogComponentColumnNameSelection(accsn_protein, "Proteins Column", 0, true, StringValue.class));
         addDialogComponent(new DialogComponentColumnNameSelection(matches_peptides, "Peptides Column", 0, true, 
         		           
@@ -61,6 +91,87 @@ public class MSBayesProNodeDialog extends DefaultNodeSettingsPane {
         
          addDialogComponent(new DialogComponentColumnNameSelection(probabilities, "Probabilities", 0, true, DoubleValue.class));
          addDialogComponent(new DialogComponentColumnNameSelection(detectability, "Detectability", 0, true, DoubleValue.class));
+         
+         createNewGroup("idXML/mzIdentML file");
+         addDialogComponent(new DialogComponentFileChooser(input_file, "msbayespro_input_file", ".idXML", ".mzid", ".mzIdentML") {
+        	 @Override
+        	 protected void validateSettingsBeforeSave() throws InvalidSettingsException {
+        		 // an empty file is fine, as long as the PSMs are read from the table
+        		 if (getModel().isEnabled()) {
+        			 super.validateSettingsBeforeSave();
+        		 }
+        	 }
+         });
+         addDialogComponent(new DialogComponentNumber(default_detectability, "Default detectability", 0.1));
+         addDialogComponent(new DialogComponentString(mzid_score, "mzIdentML score (accession or name)"));
+         addDialogComponent(new DialogComponentBoolean(mzid_error_probability, "mzIdentML score is an error probability"));
+         closeCurrentGroup();
+         
+         //settings of the approximate inference for giant components...
+         final SettingsModelIntegerBounded approximate_threshold = new SettingsModelIntegerBounded(MSBayesProNodeModel.CFGKEY_APPROXIMATE_THRESHOLD,
+        		 MSBayesProNodeModel.DEFAULT_APPROXIMATE_THRESHOLD, 0, Integer.MAX_VALUE);
+         final SettingsModelIntegerBounded approximate_budget = new SettingsModelIntegerBounded(MSBayesProNodeModel.CFGKEY_APPROXIMATE_BUDGET,
+        		 MSBayesProNodeModel.DEFAULT_APPROXIMATE_BUDGET, 1, Integer.MAX_VALUE);
+         final SettingsModelDoubleBounded approximate_damping = new SettingsModelDoubleBounded(MSBayesProNodeModel.CFGKEY_APPROXIMATE_DAMPING,
+        		 MSBayesProNodeModel.DEFAULT_APPROXIMATE_DAMPING, 0.0, 0.99);
+         
+         createNewGroup("Approximate inference");
+         addDialogComponent(new DialogComponentNumber(approximate_threshold, "Approximate components with more proteins than (0 = never)", 100));
+         addDialogComponent(new DialogComponentNumber(approximate_budget, "Time budget per component (seconds)", 10));
+         addDialogComponent(new DialogComponentNumber(approximate_damping, "Damping", 0.1));
+         closeCurrentGroup();
+         
+         final SettingsModelIntegerBounded threads = new SettingsModelIntegerBounded(MSBayesProNodeModel.CFGKEY_THREADS,
+        		 MSBayesProNodeModel.DEFAULT_THREADS, 0, Integer.MAX_VALUE);
+         addDialogComponent(new DialogComponentNumber(threads, "Threads (0 = all processors)", 1));
+         
+         final SettingsModelBoolean checkpoint = new SettingsModelBoolean(MSBayesProNodeModel.CFGKEY_CHECKPOINT, true);
+         addDialogComponent(new DialogComponentBoolean(checkpoint, "Checkpoint completed components"));
+         
+         //how the data is passed to MSBayesPro...
+         final SettingsModelString io_mode = new SettingsModelString(MSBayesProNodeModel.CFGKEY_IO_MODE, MSBayesProNodeModel.IO_MODE_FILES);
+         final SettingsModelString scratch_dir = new SettingsModelString(MSBayesProNodeModel.CFGKEY_SCRATCH_DIR, "");
+         
+         createNewGroup("MSBayesPro data exchange");
+         addDialogComponent(new DialogComponentStringSelection(io_mode, "Pass input by",
+        		 MSBayesProNodeModel.IO_MODE_FILES, MSBayesProNodeModel.IO_MODE_PIPES));
+         // a plain string, as the file chooser does not accept the empty default
+         addDialogComponent(new DialogComponentString(scratch_dir, "Scratch directory (empty = system temporary directory)"));
+         closeCurrentGroup();
+         
+         //peptide-level output...
+         final SettingsModelBoolean peptide_posteriors = new SettingsModelBoolean(MSBayesProNodeModel.CFGKEY_PEPTIDE_POSTERIORS, false);
+         addDialogComponent(new DialogComponentBoolean(peptide_posteriors, "Output peptide posteriors"));
+         
+         //bootstrap of the protein probabilities...
+         final SettingsModelIntegerBounded bootstrap_replicates = new SettingsModelIntegerBounded(MSBayesProNodeModel.CFGKEY_BOOTSTRAP_REPLICATES,
+        		 MSBayesProNodeModel.DEFAULT_BOOTSTRAP_REPLICATES, 0, Integer.MAX_VALUE);
+         final SettingsModelDoubleBounded bootstrap_confidence = new SettingsModelDoubleBounded(MSBayesProNodeModel.CFGKEY_BOOTSTRAP_CONFIDENCE,
+        		 MSBayesProNodeModel.DEFAULT_BOOTSTRAP_CONFIDENCE, 0.5, 0.999);
+         
+         createNewGroup("Bootstrap");
+         addDialogComponent(new DialogComponentNumber(bootstrap_replicates, "Replicates (0 = no bootstrap)", 10));
+         addDialogComponent(new DialogComponentNumber(bootstrap_confidence, "Confidence level", 0.01));
+         closeCurrentGroup();
+         
+         //target/decoy FDR of the protein groups...
+         final SettingsModelString decoy_prefix = new SettingsModelString(MSBayesProNodeModel.CFGKEY_DECOY_PREFIX, "");
+         final SettingsModelDoubleBounded fdr_cutoff = new SettingsModelDoubleBounded(MSBayesProNodeModel.CFGKEY_FDR_CUTOFF, 1.0, 0.0, 1.0);
+         
+         createNewGroup("Protein FDR");
+         addDialogComponent(new DialogComponentString(decoy_prefix, "Decoy prefix (empty = no q-values)"));
+         addDialogComponent(new DialogComponentNumber(fdr_cutoff, "FDR cutoff", 0.01));
+         closeCurrentGroup();
+         
+         //workers executing the MSBayesPro shards...
+         final SettingsModelString workers = new SettingsModelString(MSBayesProNodeModel.CFGKEY_WORKERS, "");
+         final SettingsModelIntegerBounded worker_retries = new SettingsModelIntegerBounded(MSBayesProNodeModel.CFGKEY_WORKER_RETRIES,
+        		 MSBayesProNodeModel.DEFAULT_WORKER_RETRIES, 0, Integer.MAX_VALUE);
+         
+         createNewGroup("Workers");
+         addDialogComponent(new DialogComponentString(workers, "Workers (host:port,... or local:n, empty = within the node)"));
+         addDialogComponent(new DialogComponentNumber(worker_retries, "Retries of a failed shard", 1));
+         closeCurrentGroup();
 
     }
 }
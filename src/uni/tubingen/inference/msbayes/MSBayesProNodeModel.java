@@ -1,23 +1,20 @@
 package uni.tubingen.inference.msbayes;
 
 import java.io.File;
-import java.io.FileWriter;
 import java.io.IOException;
-import java.io.PrintWriter;
-import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.List;
-import java.util.Set;
 
 import org.knime.core.data.DataCell;
 import org.knime.core.data.DataColumnSpec;
 import org.knime.core.data.DataColumnSpecCreator;
 import org.knime.core.data.DataRow;
 import org.knime.core.data.DataTableSpec;
+import org.knime.core.data.DataType;
 import org.knime.core.data.DoubleValue;
 import org.knime.core.data.RowIterator;
 import org.knime.core.data.RowKey;
 import org.knime.core.data.StringValue;
+import org.knime.core.data.def.BooleanCell;
 import org.knime.core.data.def.DefaultRow;
 import org.knime.core.data.def.DoubleCell;
 import org.knime.core.data.def.IntCell;
@@ -32,7 +29,12 @@ import org.knime.core.node.NodeLogger;
 import org.knime.core.node.NodeModel;
 import org.knime.core.node.NodeSettingsRO;
 import org.knime.core.node.NodeSettingsWO;
+import org.knime.core.node.defaultnodesettings.SettingsModel;
+import org.knime.core.node.defaultnodesettings.SettingsModelBoolean;
+import org.knime.core.node.defaultnodesettings.SettingsModelDoubleBounded;
+import org.knime.core.node.defaultnodesettings.SettingsModelIntegerBounded;
 import org.knime.core.node.defaultnodesettings.SettingsModelString;
+import org.knime.core.node.port.PortType;
 
 
 /**
@@ -49,6 +51,44 @@ public class MSBayesProNodeModel extends NodeModel {
 	static String CFGKEY_PROTEIN = "protein";
 	static String CFGKEY_PROBABILITIES = "probabilities";
 	static String CFGKEY_DETECTABILITY = "detectability";
+	static String CFGKEY_APPROXIMATE_THRESHOLD = "approximate_threshold";
+	static String CFGKEY_APPROXIMATE_BUDGET = "approximate_budget";
+	static String CFGKEY_APPROXIMATE_DAMPING = "approximate_damping";
+	static String CFGKEY_THREADS = "threads";
+	static String CFGKEY_INPUT_MODE = "input_mode";
+	static String CFGKEY_INPUT_FILE = "input_file";
+	static String CFGKEY_DEFAULT_DETECTABILITY = "default_detectability";
+	static String CFGKEY_MZID_SCORE = "mzid_score";
+	static String CFGKEY_MZID_ERROR_PROBABILITY = "mzid_error_probability";
+	static String CFGKEY_IO_MODE = "io_mode";
+	static String CFGKEY_SCRATCH_DIR = "scratch_dir";
+	static String CFGKEY_PEPTIDE_POSTERIORS = "peptide_posteriors";
+	static String CFGKEY_BOOTSTRAP_REPLICATES = "bootstrap_replicates";
+	static String CFGKEY_BOOTSTRAP_CONFIDENCE = "bootstrap_confidence";
+	static String CFGKEY_DECOY_PREFIX = "decoy_prefix";
+	static String CFGKEY_FDR_CUTOFF = "fdr_cutoff";
+	static String CFGKEY_WORKERS = "workers";
+	static String CFGKEY_WORKER_RETRIES = "worker_retries";
+	static String CFGKEY_CHECKPOINT = "checkpoint";
+	
+	static final String INPUT_MODE_TABLE = "Input table";
+	static final String INPUT_MODE_FILE = "idXML/mzIdentML file";
+	
+	static final String IO_MODE_FILES = "Temporary files";
+	static final String IO_MODE_PIPES = "Named pipes";
+	
+	static final int DEFAULT_APPROXIMATE_THRESHOLD = MSBayesProEngine.DEFAULT_APPROXIMATE_THRESHOLD;
+	static final int DEFAULT_APPROXIMATE_BUDGET = MSBayesProEngine.DEFAULT_APPROXIMATE_BUDGET;
+	static final double DEFAULT_APPROXIMATE_DAMPING = MSBayesProEngine.DEFAULT_APPROXIMATE_DAMPING;
+	static final int DEFAULT_THREADS = 0;
+	static final int DEFAULT_BOOTSTRAP_REPLICATES = 0;
+	static final double DEFAULT_BOOTSTRAP_CONFIDENCE = MSBayesProEngine.DEFAULT_BOOTSTRAP_CONFIDENCE;
+	static final int DEFAULT_WORKER_RETRIES = RemoteShardExecutor.DEFAULT_RETRIES;
+	
+	// the directory of the checkpoint logs, in the scratch directory if one is set, the logs are named by the key
+	// of their input and deleted after a completed execution
+	static final String CHECKPOINT_DIR_NAME = "msbayespro-checkpoints";
+	static final File CHECKPOINT_DIR = new File(System.getProperty("java.io.tmpdir"), CHECKPOINT_DIR_NAME);
 	
 	//fields to link execute variable with input variable...
 	private final SettingsModelString m_peptide_column = new SettingsModelString(CFGKEY_PEPTIDES, "Peptides");
@@ -56,26 +96,61 @@ public class MSBayesProNodeModel extends NodeModel {
 	private final SettingsModelString m_probability_column   = new SettingsModelString(CFGKEY_PROBABILITIES, "Probabilities");
 	private final SettingsModelString m_detectability_column   = new SettingsModelString(CFGKEY_PROBABILITIES, "Detectability");
 	
+	// components with more proteins are inferred approximately (0 = never), the budget is given in seconds per component
+	private final SettingsModelIntegerBounded m_approximate_threshold = new SettingsModelIntegerBounded(CFGKEY_APPROXIMATE_THRESHOLD, DEFAULT_APPROXIMATE_THRESHOLD, 0, Integer.MAX_VALUE);
+	private final SettingsModelIntegerBounded m_approximate_budget = new SettingsModelIntegerBounded(CFGKEY_APPROXIMATE_BUDGET, DEFAULT_APPROXIMATE_BUDGET, 1, Integer.MAX_VALUE);
+	private final SettingsModelDoubleBounded m_approximate_damping = new SettingsModelDoubleBounded(CFGKEY_APPROXIMATE_DAMPING, DEFAULT_APPROXIMATE_DAMPING, 0.0, 0.99);
+	
+	// number of concurrent inference tasks (0 = number of available processors)
+	private final SettingsModelIntegerBounded m_threads = new SettingsModelIntegerBounded(CFGKEY_THREADS, DEFAULT_THREADS, 0, Integer.MAX_VALUE);
+	
+	// read the PSMs from the input table or directly from an idXML/mzIdentML file
+	private final SettingsModelString m_input_mode = new SettingsModelString(CFGKEY_INPUT_MODE, INPUT_MODE_TABLE);
+	private final SettingsModelString m_input_file = new SettingsModelString(CFGKEY_INPUT_FILE, "");
+	private final SettingsModelDoubleBounded m_default_detectability = new SettingsModelDoubleBounded(CFGKEY_DEFAULT_DETECTABILITY, IdentificationFileReader.DEFAULT_DETECTABILITY, 0.0, 1.0);
+	private final SettingsModelString m_mzid_score = new SettingsModelString(CFGKEY_MZID_SCORE, IdentificationFileReader.DEFAULT_MZID_SCORE);
+	private final SettingsModelBoolean m_mzid_error_probability = new SettingsModelBoolean(CFGKEY_MZID_ERROR_PROBABILITY, true);
+	
+	// how the data is passed to MSBayesPro, the scratch directory (e.g. /dev/shm) holds its temporary files ("" = system default)
+	private final SettingsModelString m_io_mode = new SettingsModelString(CFGKEY_IO_MODE, IO_MODE_FILES);
+	private final SettingsModelString m_scratch_dir = new SettingsModelString(CFGKEY_SCRATCH_DIR, "");
+	
+	// whether the peptide posteriors are read and written to the second output (otherwise it stays empty)
+	private final SettingsModelBoolean m_peptide_posteriors = new SettingsModelBoolean(CFGKEY_PEPTIDE_POSTERIORS, false);
+	
+	// number of bootstrap replicates of the PSMs (0 = no bootstrap) and the confidence level of the lower bounds
+	private final SettingsModelIntegerBounded m_bootstrap_replicates = new SettingsModelIntegerBounded(CFGKEY_BOOTSTRAP_REPLICATES, DEFAULT_BOOTSTRAP_REPLICATES, 0, Integer.MAX_VALUE);
+	private final SettingsModelDoubleBounded m_bootstrap_confidence = new SettingsModelDoubleBounded(CFGKEY_BOOTSTRAP_CONFIDENCE, DEFAULT_BOOTSTRAP_CONFIDENCE, 0.5, 0.999);
+	
+	// prefix of the decoy accessions for the protein q-values ("" = no q-values), groups with higher q-values are dropped
+	private final SettingsModelString m_decoy_prefix = new SettingsModelString(CFGKEY_DECOY_PREFIX, "");
+	private final SettingsModelDoubleBounded m_fdr_cutoff = new SettingsModelDoubleBounded(CFGKEY_FDR_CUTOFF, 1.0, 0.0, 1.0);
+	
+	// the workers executing the MSBayesPro shards, "host:port,..." or "local:n" ("" = MSBayesPro runs within the node)
+	private final SettingsModelString m_workers = new SettingsModelString(CFGKEY_WORKERS, "");
+	private final SettingsModelIntegerBounded m_worker_retries = new SettingsModelIntegerBounded(CFGKEY_WORKER_RETRIES, DEFAULT_WORKER_RETRIES, 0, Integer.MAX_VALUE);
+	
+	// whether completed components are checkpointed, so a cancelled or failed execution resumes from them
+	private final SettingsModelBoolean m_checkpoint = new SettingsModelBoolean(CFGKEY_CHECKPOINT, true);
+	
 	//fields to manage the input table...
 	static int pep_idx    = 0;
 	static int accsn_idx  = 0;
 	static int proba_idx  = 0;
 	static int detect_idx = 0;
 	
-	private File temporal_probability_file = null;
-	private File temporal_detectability_file = null;
+	// the interned peptide-protein graph, the protein indices are used to call MSBAyesPro
+	private PeptideProteinGraph graph;
 	
-	// list holding the protein names, indices are used to call MSBAyesPro
-	private List<String> proteinLongnames;
+	// the checkpoint log of the last execution and whether the settings changed since
+	private File checkpointFile = null;
+	private boolean settingsChanged = false;
 	
 	/**
 	 * Constructor for the node model.
 	 */
 	protected MSBayesProNodeModel() {
-		super(1, 1);
-		
-		temporal_probability_file = null;
-		temporal_detectability_file = null;
+		super(new PortType[]{BufferedDataTable.TYPE_OPTIONAL}, new PortType[]{BufferedDataTable.TYPE, BufferedDataTable.TYPE});
 	}
 	
 	/**
@@ -85,22 +160,93 @@ public class MSBayesProNodeModel extends NodeModel {
 	protected BufferedDataTable[] execute(final BufferedDataTable[] inData,
 			final ExecutionContext exec) throws Exception {
 		
-		this.checkTableConfiguraion(inData);
+		if (INPUT_MODE_FILE.equals(m_input_mode.getStringValue())) {
+			graph = readIdentificationFile();
+		} else {
+			this.checkTableConfiguraion(inData);
+			graph = createPeptideProteinGraph(inData[0]);
+		}
 		
 		DataTableSpec new_spec_table = new DataTableSpec(make_output_spec());  	
 		BufferedDataContainer container = exec.createDataContainer(new_spec_table);
+		BufferedDataContainer peptide_container = exec.createDataContainer(new DataTableSpec(make_peptide_output_spec()));
 		
-		createDetectabilityFile(inData[0]);
-		createProbabilityFile(inData[0]);
+		MSBayesProEngine engine = new MSBayesProEngine(graph);
+		engine.setNrThreads(m_threads.getIntValue());
+		engine.setApproximateThreshold(m_approximate_threshold.getIntValue());
+		engine.setApproximateBudget(m_approximate_budget.getIntValue());
+		engine.setApproximateDamping(m_approximate_damping.getDoubleValue());
+		File scratchDirectory = (m_scratch_dir.getStringValue().trim().length() > 0)
+				? new File(m_scratch_dir.getStringValue().trim()) : null;
+		if (m_checkpoint.getBooleanValue()) {
+			engine.setCheckpointDirectory((scratchDirectory != null)
+					? new File(scratchDirectory, CHECKPOINT_DIR_NAME) : CHECKPOINT_DIR);
+		}
+		engine.setUseNamedPipes(IO_MODE_PIPES.equals(m_io_mode.getStringValue()));
+		engine.setScratchDirectory(scratchDirectory);
+		engine.setPeptidePosteriors(m_peptide_posteriors.getBooleanValue());
+		engine.setBootstrapReplicates(m_bootstrap_replicates.getIntValue());
+		engine.setBootstrapConfidence(m_bootstrap_confidence.getDoubleValue());
+		if (m_workers.getStringValue().trim().length() > 0) {
+			RemoteShardExecutor workers = new RemoteShardExecutor(m_workers.getStringValue(), m_worker_retries.getIntValue());
+			workers.setLocalWorkerOptions(null, scratchDirectory, IO_MODE_PIPES.equals(m_io_mode.getStringValue()));
+			engine.setShardExecutor(workers);
+		}
+		
+		InferenceResult result;
+		try {
+			result = engine.run(createMonitor(exec));
+		} finally {
+			// the log of the previous execution cannot be resumed anymore, if the input changed
+			if ((checkpointFile != null) && !checkpointFile.equals(engine.getCheckpointFile())) {
+				InferenceCheckpoint.deleteUnused(checkpointFile);
+			}
+			checkpointFile = engine.getCheckpointFile();
+		}
 		
-		MsBayesPro process = new MsBayesPro(temporal_probability_file.getAbsolutePath(), temporal_detectability_file.getAbsolutePath());
-		HashMap<String, Number[]> proteinsMap = process.computeProteinInference();
-		writeToContainer(container, proteinsMap);
+		writeToContainer(container, result);
 		container.close();
 		
-		temporal_probability_file.delete();
-		temporal_detectability_file.delete();
-		return new BufferedDataTable[]{ container.getTable() };
+		writePeptidesToContainer(peptide_container, result);
+		peptide_container.close();
+		
+		return new BufferedDataTable[]{ container.getTable(), peptide_container.getTable() };
+	}
+	
+	
+	/**
+	 * creates the monitor passing the engine's progress and messages to KNIME
+	 * 
+	 * @param exec
+	 * @return
+	 */
+	private static InferenceMonitor createMonitor(final ExecutionContext exec) {
+		return new InferenceMonitor() {
+			@Override
+			public void checkCanceled() throws Exception {
+				exec.checkCanceled();
+			}
+			
+			@Override
+			public void setProgress(double fraction, String message) {
+				exec.setProgress(fraction, message);
+			}
+			
+			@Override
+			public void info(String message) {
+				logger.info(message);
+			}
+			
+			@Override
+			public void warn(String message) {
+				logger.warn(message);
+			}
+			
+			@Override
+			public void error(String message, Throwable t) {
+				logger.error(message, t);
+			}
+		};
 	}
 	
 	
@@ -111,6 +257,10 @@ public class MSBayesProNodeModel extends NodeModel {
 	 * @throws Exception
 	 */
 	private void checkTableConfiguraion(BufferedDataTable[] inData) throws Exception{
+		if (inData[0] == null) {
+			throw new Exception("No input table connected, connect one or read an idXML/mzIdentML file!");
+		}
+		
 		//important!!! getting correct index from coming table 
 		pep_idx  = inData[0].getDataTableSpec().findColumnIndex(m_peptide_column.getStringValue());
 		accsn_idx= inData[0].getDataTableSpec().findColumnIndex(m_protein_column.getStringValue());
@@ -127,125 +277,130 @@ public class MSBayesProNodeModel extends NodeModel {
 	 * @return
 	 */
 	private DataColumnSpec[]  make_output_spec() {  	
-		DataColumnSpec cols[] = new DataColumnSpec[4];
+		DataColumnSpec cols[] = new DataColumnSpec[10];
 		cols[0] = new DataColumnSpecCreator("Protein ID", StringCell.TYPE).createSpec();
 		cols[1] = new DataColumnSpecCreator("MSBayes Probability", DoubleCell.TYPE).createSpec();
 		cols[2] = new DataColumnSpecCreator("nrPeptidesMod", IntCell.TYPE).createSpec();
 		cols[3] = new DataColumnSpecCreator("nrPeptides", IntCell.TYPE).createSpec();
+		cols[4] = new DataColumnSpecCreator("Approximate", BooleanCell.TYPE).createSpec();
+		cols[5] = new DataColumnSpecCreator("Bootstrap Mean", DoubleCell.TYPE).createSpec();
+		cols[6] = new DataColumnSpecCreator("Bootstrap Lower Bound", DoubleCell.TYPE).createSpec();
+		cols[7] = new DataColumnSpecCreator("Bootstrap Replicates", IntCell.TYPE).createSpec();
+		cols[8] = new DataColumnSpecCreator("Decoy", BooleanCell.TYPE).createSpec();
+		cols[9] = new DataColumnSpecCreator("q-value", DoubleCell.TYPE).createSpec();
+		
+		return cols;
+	}
+	
+	/**
+	 * configure peptide output table column name
+	 * @return
+	 */
+	private DataColumnSpec[]  make_peptide_output_spec() {
+		DataColumnSpec cols[] = new DataColumnSpec[3];
+		cols[0] = new DataColumnSpecCreator("Peptide", StringCell.TYPE).createSpec();
+		cols[1] = new DataColumnSpecCreator("MSBayes Posterior Probability", DoubleCell.TYPE).createSpec();
+		cols[2] = new DataColumnSpecCreator("Approximate", BooleanCell.TYPE).createSpec();
 		
 		return cols;
 	}
 	
 	
 	/**
-	 * This function builds the detectability file, output: Peptide ---> Protein(index) ---> Detectability
+	 * This function streams the idXML or mzIdentML file directly into the interned peptide-protein graph
 	 * 
-	 * @param data_table
+	 * @return
 	 * @throws IOException
 	 */
-	private void createDetectabilityFile(BufferedDataTable data_table) throws IOException {
-		temporal_detectability_file = File.createTempFile("msbayes_detectability_file", ".txt");
-		PrintWriter pw = new PrintWriter(new FileWriter(temporal_detectability_file));
+	private PeptideProteinGraph readIdentificationFile() throws IOException {
+		PeptideProteinGraph pepProtGraph = new PeptideProteinGraph();
 		
-		proteinLongnames = new ArrayList<String>();
+		IdentificationFileReader reader = new IdentificationFileReader(m_default_detectability.getDoubleValue(),
+				m_mzid_score.getStringValue(), m_mzid_error_probability.getBooleanValue());
+		reader.read(new File(m_input_file.getStringValue()), pepProtGraph);
 		
-		RowIterator row_it = data_table.iterator();
-		while (row_it.hasNext()) {
-			// getting information from current row...
-			DataRow r = row_it.next();
-			DataCell pep_cell    = r.getCell(MSBayesProNodeModel.pep_idx);
-			DataCell accsn_cell  = r.getCell(MSBayesProNodeModel.accsn_idx);
-			DataCell proba_cell  = r.getCell(MSBayesProNodeModel.proba_idx);
-			DataCell detect_cell = r.getCell(MSBayesProNodeModel.detect_idx);
-			
-			// rows with missing cells cannot be processed (no missing values in PSM graph...)
-			if (pep_cell.isMissing() || accsn_cell.isMissing() || proba_cell.isMissing()) {
-				continue;
-			}
-			
-			// getting value from cells
-			String peptide_entry = ((StringValue) pep_cell).getStringValue();
-			String protein_accsn = ((StringValue) accsn_cell).getStringValue();
-			Double detect_entry  = ((DoubleValue) detect_cell).getDoubleValue();
-			
-			String [] proteins = protein_accsn.split(";");
-			
-			for (String proteinAcc : proteins) {
-				if (!proteinLongnames.contains(proteinAcc)) {
-					proteinLongnames.add(proteinAcc);
-				}
-				
-				int idx = proteinLongnames.indexOf(proteinAcc);
-				pw.println(peptide_entry + "\t" + (idx+100) + "\t" + detect_entry);
-			}
+		if (reader.getNrSkipped() > 0) {
+			setWarningMessage("Skipped " + reader.getNrSkipped() + " hits without proteins or a valid score");
 		}
+		logger.info("read " + reader.getNrPSMs() + " PSMs from " + m_input_file.getStringValue());
 		
-		pw.close();
+		return pepProtGraph;
 	}
 	
 	
 	/**
-	 * This function builds the probability file
-	 *    
+	 * This function reads the input table into the interned peptide-protein graph
+	 * 
 	 * @param data_table
-	 * @throws IOException
+	 * @return
 	 */
-	private void createProbabilityFile (BufferedDataTable data_table) throws IOException {
-		temporal_probability_file = File.createTempFile("ms_bayes_probability_file", ".txt");
-		PrintWriter pw = new PrintWriter(new FileWriter(temporal_probability_file));
+	private PeptideProteinGraph createPeptideProteinGraph(BufferedDataTable data_table) {
+		PeptideProteinGraph pepProtGraph = new PeptideProteinGraph();
 		
 		RowIterator row_it = data_table.iterator();
 		while (row_it.hasNext()) {
 			// getting information from current row...
 			DataRow r = row_it.next();
-			DataCell pep_cell   = r.getCell(MSBayesProNodeModel.pep_idx);
-			DataCell proba_cell = r.getCell(MSBayesProNodeModel.proba_idx);    		
+			DataCell pep_cell    = r.getCell(MSBayesProNodeModel.pep_idx);
+			DataCell accsn_cell  = r.getCell(MSBayesProNodeModel.accsn_idx);
+			DataCell proba_cell  = r.getCell(MSBayesProNodeModel.proba_idx);
+			DataCell detect_cell = r.getCell(MSBayesProNodeModel.detect_idx);
 			
 			// rows with missing cells cannot be processed (no missing values in PSM graph...)
-			if (pep_cell.isMissing() || proba_cell.isMissing()) {
+			if (pep_cell.isMissing() || accsn_cell.isMissing() || proba_cell.isMissing()) {
 				continue;
 			}
 			
-			//getting value from cells
+			// getting value from cells
 			String peptide_entry = ((StringValue) pep_cell).getStringValue();
+			String protein_accsn = ((StringValue) accsn_cell).getStringValue();
 			Double proba_entry   = ((DoubleValue) proba_cell).getDoubleValue();
+			Double detect_entry  = ((DoubleValue) detect_cell).getDoubleValue();
 			
-			pw.println(peptide_entry + "\t" + proba_entry);
+			pepProtGraph.addPSM(peptide_entry, protein_accsn.split(";"), proba_entry, detect_entry);
 		}
 		
-		pw.close();
+		return pepProtGraph;
 	}
 	
 	
 	/**
-	 * print the proteins and their probabilities in descending order.
-	 * @param proteinMap
+	 * print the proteins and their probabilities in descending order, up to the FDR cutoff.
+	 * @param container
+	 * @param result
 	 */
-	private void writeToContainer(BufferedDataContainer container, HashMap<String, Number[]> proteinMap) {
-		Set<String> set_protein = proteinMap.keySet();
+	private void writeToContainer(BufferedDataContainer container, InferenceResult result) {
+		HashMap<String, Number[]> proteinMap = result.getProteinsMap();
 		
-		for(String proteinIDs : set_protein) {
-			if(proteinIDs==null){
-				continue;
-			}
+		ProteinFDR fdr = new ProteinFDR(m_decoy_prefix.getStringValue());
+		fdr.compute(result);
+		
+		// the q-values never decrease in this order, so the groups above the cutoff are simply not written
+		int nr_accepted = fdr.getNrAccepted(m_fdr_cutoff.getDoubleValue());
+		for (int g = 0; g < nr_accepted; g++) {
+			String proteinIDs = fdr.getProteinIDs(g);
 			
 			RowKey key = new RowKey(proteinIDs);
-			DataCell[] cells = new DataCell[4];
-			
-			StringBuilder accs = new StringBuilder();
-			for (String acc : proteinIDs.split(";")) {
-				if (accs.length() > 0) {
-					accs.append(";");
-				}
-				accs.append(proteinLongnames.get(Integer.parseInt(acc)-100));
-			}
+			DataCell[] cells = new DataCell[10];
 			
-			cells[0] = new StringCell(accs.toString());
+			cells[0] = new StringCell(graph.getProteinAccessions(proteinIDs));
 			
 			Number[] values = proteinMap.get(proteinIDs);
 			cells[1] = new DoubleCell(values[0].doubleValue());
 			cells[2] = new IntCell(values[1].intValue());
 			cells[3] = new IntCell(values[2].intValue());
+			cells[4] = result.isApproximate(proteinIDs) ? BooleanCell.TRUE : BooleanCell.FALSE;
+			
+			// the bootstrap statistics are missing without bootstrap
+			Number[] bootstrap = result.getBootstrap(proteinIDs);
+			for (int i = 0; i < 2; i++) {
+				cells[5 + i] = ((bootstrap != null) && !Double.isNaN(bootstrap[i].doubleValue()))
+						? new DoubleCell(bootstrap[i].doubleValue()) : DataType.getMissingCell();
+			}
+			cells[7] = (bootstrap != null) ? new IntCell(bootstrap[2].intValue()) : DataType.getMissingCell();
+			
+			cells[8] = fdr.isDecoy(g) ? BooleanCell.TRUE : BooleanCell.FALSE;
+			cells[9] = fdr.hasQValues() ? new DoubleCell(fdr.getQValue(g)) : DataType.getMissingCell();
 			
 			DataRow row = new DefaultRow(key, cells);
 			container.addRowToTable(row);
@@ -253,12 +408,37 @@ public class MSBayesProNodeModel extends NodeModel {
 	}
 	
 	
+	/**
+	 * print the peptides and their posterior probabilities.
+	 * @param container
+	 * @param result
+	 */
+	private void writePeptidesToContainer(BufferedDataContainer container, InferenceResult result) {
+		HashMap<String, Double> peptideMap = result.getPeptidePosteriors();
+		
+		for (String peptide : peptideMap.keySet()) {
+			DataCell[] cells = new DataCell[3];
+			cells[0] = new StringCell(peptide);
+			cells[1] = new DoubleCell(peptideMap.get(peptide));
+			cells[2] = result.isApproximatePeptide(peptide) ? BooleanCell.TRUE : BooleanCell.FALSE;
+			
+			container.addRowToTable(new DefaultRow(new RowKey(peptide), cells));
+		}
+	}
+	
+	
     /**
      * {@inheritDoc}
      */
     @Override
     protected void reset() {
-        // TODO: generated method stub
+        // the checkpoint log of a cancelled or failed execution is kept, a re-execution over the same input and
+        // settings resumes from it, a changed input is noticed by the next execution
+        if (settingsChanged && (checkpointFile != null)) {
+        	InferenceCheckpoint.deleteUnused(checkpointFile);
+        	checkpointFile = null;
+        }
+        settingsChanged = false;
     }
 
     /**
@@ -267,7 +447,15 @@ public class MSBayesProNodeModel extends NodeModel {
     @Override
     protected DataTableSpec[] configure(final DataTableSpec[] inSpecs)
             throws InvalidSettingsException {
-    	return new DataTableSpec[]{new DataTableSpec(this.make_output_spec())};
+    	if (INPUT_MODE_FILE.equals(m_input_mode.getStringValue())) {
+    		if (m_input_file.getStringValue().trim().length() == 0) {
+    			throw new InvalidSettingsException("No idXML/mzIdentML file selected, re-configure the node!");
+    		}
+    	} else if (inSpecs[0] == null) {
+    		throw new InvalidSettingsException("No input table connected, connect one or read an idXML/mzIdentML file!");
+    	}
+    	return new DataTableSpec[]{new DataTableSpec(this.make_output_spec()),
+    			new DataTableSpec(this.make_peptide_output_spec())};
     }
 
     /**
@@ -279,6 +467,25 @@ public class MSBayesProNodeModel extends NodeModel {
         m_protein_column.saveSettingsTo(settings);
         m_probability_column.saveSettingsTo(settings);
         m_detectability_column.saveSettingsTo(settings);       
+        m_approximate_threshold.saveSettingsTo(settings);
+        m_approximate_budget.saveSettingsTo(settings);
+        m_approximate_damping.saveSettingsTo(settings);
+        m_threads.saveSettingsTo(settings);
+        m_input_mode.saveSettingsTo(settings);
+        m_input_file.saveSettingsTo(settings);
+        m_default_detectability.saveSettingsTo(settings);
+        m_mzid_score.saveSettingsTo(settings);
+        m_mzid_error_probability.saveSettingsTo(settings);
+        m_io_mode.saveSettingsTo(settings);
+        m_scratch_dir.saveSettingsTo(settings);
+        m_peptide_posteriors.saveSettingsTo(settings);
+        m_bootstrap_replicates.saveSettingsTo(settings);
+        m_bootstrap_confidence.saveSettingsTo(settings);
+        m_decoy_prefix.saveSettingsTo(settings);
+        m_fdr_cutoff.saveSettingsTo(settings);
+        m_workers.saveSettingsTo(settings);
+        m_worker_retries.saveSettingsTo(settings);
+        m_checkpoint.saveSettingsTo(settings);
     }
 
     /**
@@ -291,6 +498,26 @@ public class MSBayesProNodeModel extends NodeModel {
         m_protein_column.loadSettingsFrom(settings);
         m_probability_column.loadSettingsFrom(settings);
         m_detectability_column.loadSettingsFrom(settings);   
+        loadOptionalSetting(m_approximate_threshold, CFGKEY_APPROXIMATE_THRESHOLD, settings);
+        loadOptionalSetting(m_approximate_budget, CFGKEY_APPROXIMATE_BUDGET, settings);
+        loadOptionalSetting(m_approximate_damping, CFGKEY_APPROXIMATE_DAMPING, settings);
+        loadOptionalSetting(m_threads, CFGKEY_THREADS, settings);
+        loadOptionalSetting(m_input_mode, CFGKEY_INPUT_MODE, settings);
+        loadOptionalSetting(m_input_file, CFGKEY_INPUT_FILE, settings);
+        loadOptionalSetting(m_default_detectability, CFGKEY_DEFAULT_DETECTABILITY, settings);
+        loadOptionalSetting(m_mzid_score, CFGKEY_MZID_SCORE, settings);
+        loadOptionalSetting(m_mzid_error_probability, CFGKEY_MZID_ERROR_PROBABILITY, settings);
+        loadOptionalSetting(m_io_mode, CFGKEY_IO_MODE, settings);
+        loadOptionalSetting(m_scratch_dir, CFGKEY_SCRATCH_DIR, settings);
+        loadOptionalSetting(m_peptide_posteriors, CFGKEY_PEPTIDE_POSTERIORS, settings);
+        loadOptionalSetting(m_bootstrap_replicates, CFGKEY_BOOTSTRAP_REPLICATES, settings);
+        loadOptionalSetting(m_bootstrap_confidence, CFGKEY_BOOTSTRAP_CONFIDENCE, settings);
+        loadOptionalSetting(m_decoy_prefix, CFGKEY_DECOY_PREFIX, settings);
+        loadOptionalSetting(m_fdr_cutoff, CFGKEY_FDR_CUTOFF, settings);
+        loadOptionalSetting(m_workers, CFGKEY_WORKERS, settings);
+        loadOptionalSetting(m_worker_retries, CFGKEY_WORKER_RETRIES, settings);
+        loadOptionalSetting(m_checkpoint, CFGKEY_CHECKPOINT, settings);
+        settingsChanged = true;
     }
 
     /**
@@ -303,6 +530,45 @@ public class MSBayesProNodeModel extends NodeModel {
         m_protein_column.validateSettings(settings);
         m_probability_column.validateSettings(settings);
         m_detectability_column.validateSettings(settings);       
+        validateOptionalSetting(m_approximate_threshold, CFGKEY_APPROXIMATE_THRESHOLD, settings);
+        validateOptionalSetting(m_approximate_budget, CFGKEY_APPROXIMATE_BUDGET, settings);
+        validateOptionalSetting(m_approximate_damping, CFGKEY_APPROXIMATE_DAMPING, settings);
+        validateOptionalSetting(m_threads, CFGKEY_THREADS, settings);
+        validateOptionalSetting(m_input_mode, CFGKEY_INPUT_MODE, settings);
+        validateOptionalSetting(m_input_file, CFGKEY_INPUT_FILE, settings);
+        validateOptionalSetting(m_default_detectability, CFGKEY_DEFAULT_DETECTABILITY, settings);
+        validateOptionalSetting(m_mzid_score, CFGKEY_MZID_SCORE, settings);
+        validateOptionalSetting(m_mzid_error_probability, CFGKEY_MZID_ERROR_PROBABILITY, settings);
+        validateOptionalSetting(m_io_mode, CFGKEY_IO_MODE, settings);
+        validateOptionalSetting(m_scratch_dir, CFGKEY_SCRATCH_DIR, settings);
+        validateOptionalSetting(m_peptide_posteriors, CFGKEY_PEPTIDE_POSTERIORS, settings);
+        validateOptionalSetting(m_bootstrap_replicates, CFGKEY_BOOTSTRAP_REPLICATES, settings);
+        validateOptionalSetting(m_bootstrap_confidence, CFGKEY_BOOTSTRAP_CONFIDENCE, settings);
+        validateOptionalSetting(m_decoy_prefix, CFGKEY_DECOY_PREFIX, settings);
+        validateOptionalSetting(m_fdr_cutoff, CFGKEY_FDR_CUTOFF, settings);
+        validateOptionalSetting(m_workers, CFGKEY_WORKERS, settings);
+        validateOptionalSetting(m_worker_retries, CFGKEY_WORKER_RETRIES, settings);
+        validateOptionalSetting(m_checkpoint, CFGKEY_CHECKPOINT, settings);
+    }
+    
+    /**
+     * loads a setting added after the first version of the node, workflows saved without it keep its default
+     */
+    private static void loadOptionalSetting(SettingsModel model, String key, NodeSettingsRO settings)
+    		throws InvalidSettingsException {
+    	if (settings.containsKey(key)) {
+    		model.loadSettingsFrom(settings);
+    	}
+    }
+    
+    /**
+     * validates a setting added after the first version of the node, if it is present
+     */
+    private static void validateOptionalSetting(SettingsModel model, String key, NodeSettingsRO settings)
+    		throws InvalidSettingsException {
+    	if (settings.containsKey(key)) {
+    		model.validateSettings(settings);
+    	}
     }
     
     /**
@@ -311,7 +577,7 @@ public class MSBayesProNodeModel extends NodeModel {
     @Override
     protected void loadInternals(final File internDir, final ExecutionMonitor exec)
     		throws IOException, CanceledExecutionException {
-        // TODO: generated method stub
+        // nothing to load, the checkpoint log lives in the checkpoint directory
     }
     
     /**
@@ -320,7 +586,7 @@ public class MSBayesProNodeModel extends NodeModel {
     @Override
     protected void saveInternals(final File internDir, final ExecutionMonitor exec)
     		throws IOException, CanceledExecutionException {
-        // TODO: generated method stub
+        // nothing to save, the checkpoint log of an executed node is already deleted
     }
 
 }
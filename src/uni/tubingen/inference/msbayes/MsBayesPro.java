@@ -3,13 +3,21 @@ package uni.tubingen.inference.msbayes;
 import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -25,6 +33,14 @@ public class MsBayesPro {
 	
 	private String PEPTIDE_PROTEIN_DETECTABILITY_FILE = null;
 	
+	private String MSBAYESPRO_EXECUTABLE = null;
+	
+	private InferenceMonitor monitor = null;
+	
+	private boolean readPeptidePosteriors = false;
+	
+	private HashMap<String, Double> peptidePosteriors = null;
+	
 	private static final String MSBAYESPRO_PARAMETER_1 = "-pospep"; 		//passing probability file
 	
 	private static final String MSBAYESPRO_PARAMETER_2 = "-detectability";	//passing detectability file
@@ -35,58 +51,122 @@ public class MsBayesPro {
 	/**
 	 * Constructor
 	 * 
+	 * @param executable the MSBayesPro executable, null for the one shipped with the plugin
 	 * @param probability_file
 	 * @param detectability_file
-	 * @throws Exception
+	 * @param monitor receives the errors of MSBayesPro
 	 */
-	public MsBayesPro (String probability_file, String detectability_file) {
+	public MsBayesPro (String executable, String probability_file, String detectability_file, InferenceMonitor monitor) {
+		this.MSBAYESPRO_EXECUTABLE = executable;
 		this.PEPTIDE_PROBABILITY_FILE = probability_file;
 		this.PEPTIDE_PROTEIN_DETECTABILITY_FILE = detectability_file;
+		this.monitor = monitor;
+	}
+	
+	
+	/**
+	 * Locates the executable shipped in the "executables" folder next to the
+	 * classes, i.e. in the plugin directory or next to the jar.
+	 * 
+	 * @return the path to the MSBayesPro executable
+	 * @throws IOException
+	 */
+	public static String getDefaultExecutable() throws IOException {
+		String msbayesPath;
+		try {
+			msbayesPath = MsBayesPro.class.getProtectionDomain().getCodeSource().getLocation().toURI().getPath();
+		} catch (URISyntaxException e) {
+			throw new IOException("could not locate the MSBayesPro executable: " + e.getMessage());
+		}
+		if (!msbayesPath.endsWith(File.separator)) {
+			// we are in the jar, only get the path to it
+			msbayesPath = msbayesPath.substring(0, msbayesPath.lastIndexOf(File.separator) + 1);
+		}
+		return msbayesPath + "executables" + File.separator + "MSBayesPro.linux64";
+	}
+	
+	
+	/**
+	 * @param readPeptidePosteriors whether the peptide posteriors are read from the ".quantify.peppost" file
+	 */
+	public void setReadPeptidePosteriors(boolean readPeptidePosteriors) {
+		this.readPeptidePosteriors = readPeptidePosteriors;
+	}
+	
+	
+	/**
+	 * @return a map from the peptide sequences to their posterior probabilities of the last inference,
+	 *         null if they were not read
+	 */
+	public HashMap<String, Double> getPeptidePosteriors() {
+		return peptidePosteriors;
 	}
 	
 	
 	/**
 	 * 
 	 * @return a map from the protein group's accession to array[probability, nrModPeps, nrPeps]
-	 * @throws InterruptedException
+	 * @throws IOException if MSBayesPro could not be executed or its output could not be read
+	 * @throws InterruptedException 
 	 */
-	public HashMap<String, Number[]> computeProteinInference() throws InterruptedException{
+	public HashMap<String, Number[]> computeProteinInference() throws IOException, InterruptedException {
 		HashMap<String, Number[]> proteinsMap = new HashMap<String, Number[]>();
+		peptidePosteriors = null;
 		
+		FutureTask<HashMap<String, Double>> peptideReader = null;
 		try {
-			String msbayesPath = this.getClass().getProtectionDomain().getCodeSource().getLocation().toURI().getPath();
-			if (!msbayesPath.endsWith(File.separator)) {
-				// we are in the jar, only get the path to it
-				msbayesPath = msbayesPath.substring(0, msbayesPath.lastIndexOf(File.separator) + 1);
-			}
-			msbayesPath += "executables" + File.separator + "MSBayesPro.linux64";
+			String msbayesPath = (MSBAYESPRO_EXECUTABLE != null) ? MSBAYESPRO_EXECUTABLE : getDefaultExecutable();
 			
 			ProcessBuilder pb = new ProcessBuilder(msbayesPath,
 					MSBAYESPRO_PARAMETER_1, PEPTIDE_PROBABILITY_FILE,
 					MSBAYESPRO_PARAMETER_2, PEPTIDE_PROTEIN_DETECTABILITY_FILE,
 					MSBAYESPRO_PARAMETER_3 );
-			pb.directory(null);
+			// MSBayesPro writes its prior file into the working directory, keep it next to the input
+			pb.directory(new File(PEPTIDE_PROBABILITY_FILE).getAbsoluteFile().getParentFile());
 			
 			Process p = pb.start(); //running command-line tool (MSBayesPro)
 			
-			BufferedReader stdOutPut = new BufferedReader(new InputStreamReader(p.getInputStream()));
-			BufferedReader stdError = new BufferedReader(new InputStreamReader(p.getErrorStream()));
+			// both outputs are drained concurrently, so MSBayesPro never blocks on a full pipe
+			List<String> errors = new ArrayList<String>();
+			Thread stdOutPut = drain(p.getInputStream(), null);
+			Thread stdError = drain(p.getErrorStream(), errors);
 			
-			//read output from the attempted command
-			//System.out.println("Here is the standard output of the command (if any):\n");
-			String line;
-			while ((line = stdOutPut.readLine()) != null) {
-				// idling to avoid timeout for command, necessary for get protein-probability file.
-				//System.out.println(s);
+			int exitCode;
+			boolean exited = false;
+			try {
+				exitCode = p.waitFor();
+				exited = true;
+				stdOutPut.join();
+				stdError.join();
+			} finally {
+				if (!exited) {
+					// the inference was cancelled, MSBayesPro must not outlive it
+					p.destroy();
+				}
+			}
+			
+			// report any errors from the attempted command
+			for (String error : errors) {
+				monitor.warn("MSBayesPro: " + error);
 			}
-			stdOutPut.close();
-			   
-			// read any errors from the attempted command
-			System.out.println("Here is the standard error of the command (if any):\n");
-			while ((line = stdError.readLine()) != null) {
-				System.out.println(line);
+			if (exitCode != 0) {
+				// the result files are missing or incomplete
+				throw new IOException("MSBayesPro exited with code " + exitCode
+						+ (errors.isEmpty() ? "" : ": " + errors.get(errors.size() - 1)));
+			}
+			
+			if (readPeptidePosteriors) {
+				// the peptide posteriors are read concurrently with the protein results
+				peptideReader = new FutureTask<HashMap<String, Double>>(new Callable<HashMap<String, Double>>() {
+					@Override
+					public HashMap<String, Double> call() throws IOException {
+						return parsePeptidePosteriors(new File(PEPTIDE_PROBABILITY_FILE + ".quantify.peppost"));
+					}
+				});
+				Thread peptideThread = new Thread(peptideReader, "MSBayesPro peptide posteriors");
+				peptideThread.setDaemon(true);
+				peptideThread.start();
 			}
-			stdError.close();
 			
 			// readme of MSBAyesPro:
 			// When interpreting the result, use MAP_state_by_Memorizing to tell whether a protein exist,
@@ -125,6 +205,7 @@ public class MsBayesPro {
 			// mapping from the proteins to their peptides
 			HashMap<Integer, Set<String>> proteinPeptides = new HashMap<Integer, Set<String>>();
 			
+			String line;
 			while ((line = reader_file.readLine()) != null) {
 				if (line.startsWith("Set #")) {
 					// start a new set
@@ -137,7 +218,7 @@ public class MsBayesPro {
 						setProba = null;
 						proteinsSet = null;
 						proteinID = null;
-						MSBayesProNodeModel.logger.error("no probability found for set: '" + line + "'");
+						monitor.error("no probability found for set: '" + line + "'", null);
 					}
 				} else if (setProba != null) {
 					// in a set
@@ -195,6 +276,23 @@ public class MsBayesPro {
 				}
 			}
 			
+			reader_file.close();
+			
+			if (peptideReader != null) {
+				try {
+					peptidePosteriors = peptideReader.get();
+				} catch (ExecutionException e) {
+					if (e.getCause() instanceof IOException) {
+						throw (IOException) e.getCause();
+					}
+					throw new IOException("could not read the peptide posteriors", e.getCause());
+				}
+			}
+		} finally {
+			if (peptideReader != null) {
+				// stops the reader, if the protein results failed
+				peptideReader.cancel(true);
+			}
 			// 
 			// delete the temporal files of MSBayesPro
 			File tmpFile = new File(PEPTIDE_PROBABILITY_FILE + ".quantify.bayes53ss");
@@ -203,15 +301,79 @@ public class MsBayesPro {
 			tmpFile.delete();
 			tmpFile = new File(PEPTIDE_PROBABILITY_FILE + ".quantify.peppost");
 			tmpFile.delete();
-		} catch (Exception e) {
-			MSBayesProNodeModel.logger.error("exception while executing MSBayesPro" , e);
 		}
 		
 		return proteinsMap;
 	}
 	
 	
-	private Number[] getValuesFromPeptides(Set<String> modifiedPeptides, Double setProba) {
+	/**
+	 * reads the stream to its end in a daemon thread
+	 * 
+	 * @param stream an output stream of MSBayesPro
+	 * @param lines receives the lines of the stream, null to discard them
+	 * @return the started thread
+	 */
+	private static Thread drain(final InputStream stream, final List<String> lines) {
+		Thread drainer = new Thread("MSBayesPro output") {
+			@Override
+			public void run() {
+				try {
+					BufferedReader reader = new BufferedReader(new InputStreamReader(stream));
+					String line;
+					while ((line = reader.readLine()) != null) {
+						if (lines != null) {
+							lines.add(line);
+						}
+					}
+					reader.close();
+				} catch (IOException e) {
+					// the process is gone, its output with it
+				}
+			}
+		};
+		drainer.setDaemon(true);
+		drainer.start();
+		return drainer;
+	}
+	
+	
+	/**
+	 * Parses the peptide posteriors of MSBayesPro, the file has a header and
+	 * the columns Pepseq, Det_Adjusted_probability and Posterior_probability.
+	 * 
+	 * @param peppostFile
+	 * @return a map from the peptide sequences to their posterior probabilities
+	 * @throws IOException
+	 */
+	private static HashMap<String, Double> parsePeptidePosteriors(File peppostFile) throws IOException {
+		HashMap<String, Double> posteriors = new HashMap<String, Double>();
+		
+		BufferedReader reader = new BufferedReader(new FileReader(peppostFile));
+		try {
+			String line = reader.readLine();	// the header
+			while ((line = reader.readLine()) != null) {
+				String[] fields = line.split("\t");
+				if (fields.length >= 3) {
+					try {
+						posteriors.put(fields[0], Double.parseDouble(fields[2]));
+					} catch (NumberFormatException e) {
+						throw new IOException("invalid peptide posterior in " + peppostFile + ": '" + line + "'");
+					}
+				}
+			}
+		} finally {
+			reader.close();
+		}
+		
+		return posteriors;
+	}
+	
+	
+	/**
+	 * @return array[probability, nrModPeps, nrPeps] for the given peptides and probability
+	 */
+	static Number[] getValuesFromPeptides(Set<String> modifiedPeptides, Double setProba) {
 		Number[] values = new Number[3];
 		
 		values[0] = setProba;
@@ -0,0 +1,154 @@
+package uni.tubingen.inference.msbayes;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.RandomAccessFile;
+
+/**
+ * Writes an input file of MSBayesPro into a named pipe (FIFO) on a thread of
+ * its own, while MSBayesPro reads it. Thus the input never touches the disk.
+ * <p>
+ * Opening a named pipe for writing blocks until the reader opens it. If
+ * MSBayesPro fails before opening the pipe, {@link #abort()} releases the
+ * writer, so no thread is left hanging.
+ *
+ * @author julian
+ *
+ */
+public abstract class NamedPipeWriter extends Thread {
+
+	// how often a writer waiting for a reader is released again
+	private static final long RELEASE_INTERVAL_MILLIS = 100;
+
+
+	private final File pipe;
+
+	private volatile IOException error;
+
+
+	/**
+	 * Constructor, the pipe must already exist (see {@link #createPipe(File)})
+	 *
+	 * @param pipe
+	 */
+	public NamedPipeWriter(File pipe) {
+		super("MSBayesPro input " + pipe.getName());
+		this.pipe = pipe;
+		this.error = null;
+		setDaemon(true);
+	}
+
+
+	/**
+	 * Creates a named pipe with mkfifo.
+	 *
+	 * @param pipe
+	 * @return whether the pipe could be created, i.e. named pipes are supported on this system
+	 */
+	public static boolean createPipe(File pipe) {
+		try {
+			Process p = new ProcessBuilder("mkfifo", pipe.getAbsolutePath()).start();
+			p.getInputStream().close();
+			p.getErrorStream().close();
+			return (p.waitFor() == 0) && pipe.exists();
+		} catch (IOException e) {
+			return false;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		}
+	}
+
+
+	/**
+	 * writes the content into the pipe
+	 *
+	 * @param pw
+	 * @throws IOException
+	 */
+	protected abstract void write(PrintWriter pw) throws IOException;
+
+
+	@Override
+	public void run() {
+		try {
+			// blocks until the reader opens the pipe
+			PrintWriter pw = new PrintWriter(new BufferedWriter(new OutputStreamWriter(new FileOutputStream(pipe))));
+			write(pw);
+			pw.close();
+			if (pw.checkError()) {
+				throw new IOException("could not write into the named pipe " + pipe);
+			}
+		} catch (IOException e) {
+			error = e;
+		}
+	}
+
+
+	/**
+	 * Waits until all content is written.
+	 *
+	 * @throws IOException if the content could not be written completely
+	 * @throws InterruptedException
+	 */
+	public void finish() throws IOException, InterruptedException {
+		// the reader is done, release the writer if it still waits for it
+		if (releaseAndJoin()) {
+			throw new InterruptedException();
+		}
+
+		if (error != null) {
+			throw error;
+		}
+	}
+
+
+	/**
+	 * Stops the writer after a failure of the reader, without reporting errors.
+	 */
+	public void abort() {
+		interrupt();
+		if (releaseAndJoin()) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+
+	/**
+	 * Releases the writer until it has ended. A single release may come
+	 * before the writer opens the pipe, and an interrupt does not end a
+	 * blocked open.
+	 *
+	 * @return whether the calling thread was interrupted while waiting
+	 */
+	private boolean releaseAndJoin() {
+		boolean interrupted = false;
+		while (isAlive()) {
+			release();
+			try {
+				join(RELEASE_INTERVAL_MILLIS);
+			} catch (InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		return interrupted;
+	}
+
+
+	/**
+	 * Opens the pipe for reading and writing, which never blocks, and so unblocks
+	 * a writer waiting for a reader. The writer fails afterwards, if there was
+	 * no other reader.
+	 */
+	private void release() {
+		try {
+			new RandomAccessFile(pipe, "rw").close();
+		} catch (IOException e) {
+			// the pipe is gone, so is the writer
+		}
+	}
+}
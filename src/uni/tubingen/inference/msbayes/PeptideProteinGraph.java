@@ -0,0 +1,440 @@
+package uni.tubingen.inference.msbayes;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * The bipartite graph of peptides and proteins given to the inference. Peptide
+ * sequences and protein accessions are interned, i.e. every distinct string is
+ * stored only once and referenced by its index afterwards.
+ *
+ * @author julian
+ *
+ */
+public class PeptideProteinGraph {
+
+	/** offset added to the protein indices, the resulting numbers are the protein IDs passed to MSBayesPro */
+	public static final int PROTEIN_ID_OFFSET = 100;
+
+	// interned peptide sequences and their indices
+	private final List<String> peptideSequences;
+	private final Map<String, Integer> peptideIndices;
+
+	// interned protein accessions and their indices
+	private final List<String> proteinAccessions;
+	private final Map<String, Integer> proteinIndices;
+
+	// the PSM probabilities of each peptide
+	private final List<double[]> psmProbabilities;
+	private final List<Integer> psmCounts;
+
+	// the edges of each peptide: protein indices and the detectability of the peptide in this protein
+	private final List<int[]> edgeProteins;
+	private final List<double[]> edgeDetectabilities;
+	private final List<Integer> edgeCounts;
+
+
+	/**
+	 * Constructor of an empty graph
+	 */
+	public PeptideProteinGraph() {
+		peptideSequences = new ArrayList<String>();
+		peptideIndices = new HashMap<String, Integer>();
+		proteinAccessions = new ArrayList<String>();
+		proteinIndices = new HashMap<String, Integer>();
+		psmProbabilities = new ArrayList<double[]>();
+		psmCounts = new ArrayList<Integer>();
+		edgeProteins = new ArrayList<int[]>();
+		edgeDetectabilities = new ArrayList<double[]>();
+		edgeCounts = new ArrayList<Integer>();
+	}
+
+
+	/**
+	 * Constructor of a copy, which shares the interned peptides and proteins
+	 * and the edges with the original graph, only the PSM probabilities are
+	 * its own.
+	 */
+	private PeptideProteinGraph(PeptideProteinGraph original) {
+		peptideSequences = original.peptideSequences;
+		peptideIndices = original.peptideIndices;
+		proteinAccessions = original.proteinAccessions;
+		proteinIndices = original.proteinIndices;
+		psmProbabilities = new ArrayList<double[]>(original.psmProbabilities);
+		psmCounts = original.psmCounts;
+		edgeProteins = original.edgeProteins;
+		edgeDetectabilities = original.edgeDetectabilities;
+		edgeCounts = original.edgeCounts;
+	}
+
+
+	/**
+	 * Adds a PSM, i.e. a peptide with its probability and the proteins it maps
+	 * to, to the graph.
+	 *
+	 * @param peptide the (modified) peptide sequence
+	 * @param proteins the accessions of the proteins containing the peptide
+	 * @param probability the probability of the PSM
+	 * @param detectability the detectability of the peptide
+	 */
+	public void addPSM(String peptide, String[] proteins, double probability, double detectability) {
+		int pepIdx = internPeptide(peptide);
+
+		int nrPSMs = psmCounts.get(pepIdx);
+		double[] probas = psmProbabilities.get(pepIdx);
+		if (nrPSMs == probas.length) {
+			probas = Arrays.copyOf(probas, 2 * probas.length);
+			psmProbabilities.set(pepIdx, probas);
+		}
+		probas[nrPSMs] = probability;
+		psmCounts.set(pepIdx, nrPSMs + 1);
+
+		for (String protein : proteins) {
+			addEdge(pepIdx, internProtein(protein), detectability);
+		}
+	}
+
+
+	private int internPeptide(String peptide) {
+		Integer idx = peptideIndices.get(peptide);
+		if (idx == null) {
+			idx = peptideSequences.size();
+			peptideSequences.add(peptide);
+			peptideIndices.put(peptide, idx);
+
+			psmProbabilities.add(new double[1]);
+			psmCounts.add(0);
+			edgeProteins.add(new int[1]);
+			edgeDetectabilities.add(new double[1]);
+			edgeCounts.add(0);
+		}
+		return idx;
+	}
+
+
+	private int internProtein(String accession) {
+		Integer idx = proteinIndices.get(accession);
+		if (idx == null) {
+			idx = proteinAccessions.size();
+			proteinAccessions.add(accession);
+			proteinIndices.put(accession, idx);
+		}
+		return idx;
+	}
+
+
+	/**
+	 * Adds the edge between the peptide and protein, if it is not yet known.
+	 * The first given detectability is kept.
+	 */
+	private void addEdge(int pepIdx, int protIdx, double detectability) {
+		int nrEdges = edgeCounts.get(pepIdx);
+		int[] proteins = edgeProteins.get(pepIdx);
+		for (int i = 0; i < nrEdges; i++) {
+			if (proteins[i] == protIdx) {
+				return;
+			}
+		}
+
+		double[] detectabilities = edgeDetectabilities.get(pepIdx);
+		if (nrEdges == proteins.length) {
+			proteins = Arrays.copyOf(proteins, 2 * proteins.length);
+			detectabilities = Arrays.copyOf(detectabilities, 2 * detectabilities.length);
+			edgeProteins.set(pepIdx, proteins);
+			edgeDetectabilities.set(pepIdx, detectabilities);
+		}
+		proteins[nrEdges] = protIdx;
+		detectabilities[nrEdges] = detectability;
+		edgeCounts.set(pepIdx, nrEdges + 1);
+	}
+
+
+	public int getNrPeptides() {
+		return peptideSequences.size();
+	}
+
+
+	public int getNrProteins() {
+		return proteinAccessions.size();
+	}
+
+
+	public String getPeptideSequence(int pepIdx) {
+		return peptideSequences.get(pepIdx);
+	}
+
+
+	public String getProteinAccession(int protIdx) {
+		return proteinAccessions.get(protIdx);
+	}
+
+
+	/**
+	 * @return the index of the peptide with the given sequence or -1, if it is not in the graph
+	 */
+	public int getPeptideIndex(String sequence) {
+		Integer idx = peptideIndices.get(sequence);
+		return (idx != null) ? idx : -1;
+	}
+
+
+	/**
+	 * @return the index of the protein with the given accession or -1, if it is not in the graph
+	 */
+	public int getProteinIndex(String accession) {
+		Integer idx = proteinIndices.get(accession);
+		return (idx != null) ? idx : -1;
+	}
+
+
+	/**
+	 * @return the accession of the protein with the given MSBayesPro protein ID
+	 */
+	public String getProteinAccessionByID(int proteinID) {
+		return proteinAccessions.get(proteinID - PROTEIN_ID_OFFSET);
+	}
+
+
+	/**
+	 * @param proteinIDs the MSBayesPro protein IDs of a protein group, separated by ';'
+	 * @return the accessions of the protein group, separated by ';'
+	 */
+	public String getProteinAccessions(String proteinIDs) {
+		StringBuilder accs = new StringBuilder();
+		for (String protID : proteinIDs.split(";")) {
+			if (accs.length() > 0) {
+				accs.append(";");
+			}
+			accs.append(getProteinAccessionByID(Integer.parseInt(protID)));
+		}
+		return accs.toString();
+	}
+
+
+	public int getNrPSMs(int pepIdx) {
+		return psmCounts.get(pepIdx);
+	}
+
+
+	public double getPSMProbability(int pepIdx, int psmIdx) {
+		return psmProbabilities.get(pepIdx)[psmIdx];
+	}
+
+
+	/**
+	 * @return the highest probability of all PSMs of the peptide
+	 */
+	public double getPeptideProbability(int pepIdx) {
+		double[] probas = psmProbabilities.get(pepIdx);
+		double maxProba = 0.0;
+		for (int i = 0; i < psmCounts.get(pepIdx); i++) {
+			maxProba = Math.max(maxProba, probas[i]);
+		}
+		return maxProba;
+	}
+
+
+	public int getNrEdges(int pepIdx) {
+		return edgeCounts.get(pepIdx);
+	}
+
+
+	public int getEdgeProtein(int pepIdx, int edgeIdx) {
+		return edgeProteins.get(pepIdx)[edgeIdx];
+	}
+
+
+	public double getEdgeDetectability(int pepIdx, int edgeIdx) {
+		return edgeDetectabilities.get(pepIdx)[edgeIdx];
+	}
+
+
+	/**
+	 * Creates a bootstrap replicate of the given components: the PSMs of each
+	 * of their peptides are drawn with replacement from the peptide's PSMs.
+	 * The replicate shares all other structures with this graph, so it must
+	 * not be changed.
+	 *
+	 * @param components the components to resample, the PSMs of all other peptides are kept
+	 * @param random
+	 * @return the replicate
+	 */
+	public PeptideProteinGraph resamplePSMs(Collection<Component> components, Random random) {
+		PeptideProteinGraph replicate = new PeptideProteinGraph(this);
+
+		for (Component component : components) {
+			for (int pepIdx : component.getPeptides()) {
+				int nrPSMs = psmCounts.get(pepIdx);
+				double[] probas = psmProbabilities.get(pepIdx);
+				double[] resampled = new double[nrPSMs];
+				for (int i = 0; i < nrPSMs; i++) {
+					resampled[i] = probas[random.nextInt(nrPSMs)];
+				}
+				replicate.psmProbabilities.set(pepIdx, resampled);
+			}
+		}
+
+		return replicate;
+	}
+
+
+	/**
+	 * Splits the graph into its connected components. Peptides without any
+	 * protein are not contained in any component.
+	 *
+	 * @return the connected components, in the order of their first peptide
+	 */
+	public List<Component> getConnectedComponents() {
+		int nrPeptides = getNrPeptides();
+
+		// union-find over the proteins, the peptides join all their proteins
+		int[] parents = new int[getNrProteins()];
+		for (int i = 0; i < parents.length; i++) {
+			parents[i] = i;
+		}
+		for (int pepIdx = 0; pepIdx < nrPeptides; pepIdx++) {
+			int[] proteins = edgeProteins.get(pepIdx);
+			for (int e = 1; e < edgeCounts.get(pepIdx); e++) {
+				int root1 = findRoot(parents, proteins[0]);
+				int root2 = findRoot(parents, proteins[e]);
+				if (root1 != root2) {
+					parents[root2] = root1;
+				}
+			}
+		}
+
+		// collect the peptides and proteins of each component
+		Map<Integer, ComponentBuilder> builders = new LinkedHashMap<Integer, ComponentBuilder>();
+		for (int pepIdx = 0; pepIdx < nrPeptides; pepIdx++) {
+			if (edgeCounts.get(pepIdx) == 0) {
+				continue;
+			}
+
+			int root = findRoot(parents, edgeProteins.get(pepIdx)[0]);
+			ComponentBuilder builder = builders.get(root);
+			if (builder == null) {
+				builder = new ComponentBuilder();
+				builders.put(root, builder);
+			}
+			builder.peptides.add(pepIdx);
+		}
+		for (int protIdx = 0; protIdx < parents.length; protIdx++) {
+			ComponentBuilder builder = builders.get(findRoot(parents, protIdx));
+			if (builder != null) {
+				builder.proteins.add(protIdx);
+			}
+		}
+
+		List<Component> components = new ArrayList<Component>(builders.size());
+		for (ComponentBuilder builder : builders.values()) {
+			components.add(new Component(toArray(builder.peptides), toArray(builder.proteins)));
+		}
+		return components;
+	}
+
+
+	private static int findRoot(int[] parents, int idx) {
+		while (parents[idx] != idx) {
+			parents[idx] = parents[parents[idx]];
+			idx = parents[idx];
+		}
+		return idx;
+	}
+
+
+	private static int[] toArray(List<Integer> list) {
+		int[] array = new int[list.size()];
+		for (int i = 0; i < array.length; i++) {
+			array[i] = list.get(i);
+		}
+		return array;
+	}
+
+
+	/**
+	 * Writes the probability file for MSBayesPro, output: Peptide ---> Probability
+	 * (one line per PSM).
+	 *
+	 * @param pw
+	 * @param components the components to write
+	 */
+	public void writeProbabilities(PrintWriter pw, Collection<Component> components) {
+		for (Component component : components) {
+			for (int pepIdx : component.getPeptides()) {
+				double[] probas = psmProbabilities.get(pepIdx);
+				for (int i = 0; i < psmCounts.get(pepIdx); i++) {
+					pw.println(peptideSequences.get(pepIdx) + "\t" + probas[i]);
+				}
+			}
+		}
+	}
+
+
+	/**
+	 * Writes the detectability file for MSBayesPro, output: Peptide ---> Protein(ID) ---> Detectability
+	 *
+	 * @param pw
+	 * @param components the components to write
+	 */
+	public void writeDetectabilities(PrintWriter pw, Collection<Component> components) {
+		for (Component component : components) {
+			for (int pepIdx : component.getPeptides()) {
+				int[] proteins = edgeProteins.get(pepIdx);
+				double[] detectabilities = edgeDetectabilities.get(pepIdx);
+				for (int e = 0; e < edgeCounts.get(pepIdx); e++) {
+					pw.println(peptideSequences.get(pepIdx) + "\t" + (proteins[e] + PROTEIN_ID_OFFSET)
+							+ "\t" + detectabilities[e]);
+				}
+			}
+		}
+	}
+
+
+	private static class ComponentBuilder {
+		private final List<Integer> peptides = new ArrayList<Integer>();
+		private final List<Integer> proteins = new ArrayList<Integer>();
+	}
+
+
+	/**
+	 * A connected component of the graph, given by the indices of its peptides
+	 * and proteins.
+	 */
+	public static class Component {
+
+		private final int[] peptides;
+
+		private final int[] proteins;
+
+
+		public Component(int[] peptides, int[] proteins) {
+			this.peptides = peptides;
+			this.proteins = proteins;
+		}
+
+
+		public int[] getPeptides() {
+			return peptides;
+		}
+
+
+		public int[] getProteins() {
+			return proteins;
+		}
+
+
+		/**
+		 * @return the number of proteins in the component
+		 */
+		public int size() {
+			return proteins.length;
+		}
+	}
+}
@@ -0,0 +1,123 @@
+package uni.tubingen.inference.msbayes;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Collects the protein probabilities of the bootstrap replicates for the
+ * protein groups of an {@link InferenceResult} and summarizes them as mean,
+ * lower confidence bound and the number of replicates reporting the group.
+ * <p>
+ * MSBayesPro takes the highest PSM probability of each peptide, so a
+ * replicate of the PSMs can only lower the evidence of a peptide, never raise
+ * it. The upper end of a two-sided interval would thus mostly repeat the
+ * probability on the original PSMs, so only a one-sided lower bound is
+ * reported, i.e. the percentile of 1 - confidence of the replicates.
+ * <p>
+ * The groups of a replicate need not be the groups of the result, so a group
+ * of the result takes the highest probability of all replicate groups sharing
+ * a protein with it. A replicate, which does not report any of its proteins,
+ * did not infer the group as present and counts with probability 0, so groups
+ * which drop out of replicates get lower means and lower bounds.
+ *
+ * @author julian
+ *
+ */
+public class ProteinBootstrap {
+
+	private final InferenceResult result;
+
+	private final int nrReplicates;
+
+	// the protein groups of the result and the group index of each protein ID
+	private final List<String> groups = new ArrayList<String>();
+	private final Map<Integer, Integer> proteinGroups = new HashMap<Integer, Integer>();
+
+	// the probabilities of each group in each replicate, NaN if it was not reported
+	private final double[][] probabilities;
+
+
+	/**
+	 * Constructor
+	 *
+	 * @param result the result of the inference on the original PSMs
+	 * @param nrReplicates
+	 */
+	public ProteinBootstrap(InferenceResult result, int nrReplicates) {
+		this.result = result;
+		this.nrReplicates = nrReplicates;
+
+		for (String proteinIDs : result.getProteinsMap().keySet()) {
+			for (String protID : proteinIDs.split(";")) {
+				proteinGroups.put(Integer.parseInt(protID), groups.size());
+			}
+			groups.add(proteinIDs);
+		}
+
+		probabilities = new double[groups.size()][nrReplicates];
+		for (double[] groupProbas : probabilities) {
+			Arrays.fill(groupProbas, Double.NaN);
+		}
+	}
+
+
+	/**
+	 * adds (a part of) the results of a replicate
+	 *
+	 * @param replicate the index of the replicate
+	 * @param proteinsMap a map from the protein group's IDs to array[probability, nrModPeps, nrPeps]
+	 */
+	public synchronized void addReplicate(int replicate, Map<String, Number[]> proteinsMap) {
+		for (Map.Entry<String, Number[]> groupIt : proteinsMap.entrySet()) {
+			double proba = groupIt.getValue()[0].doubleValue();
+
+			for (String protID : groupIt.getKey().split(";")) {
+				Integer group = proteinGroups.get(Integer.parseInt(protID));
+				if ((group != null) && !(probabilities[group][replicate] >= proba)) {
+					probabilities[group][replicate] = proba;
+				}
+			}
+		}
+	}
+
+
+	/**
+	 * Computes the statistics of each group and sets them in the result.
+	 *
+	 * @param confidence the confidence level of the one-sided lower bound, e.g. 0.95
+	 */
+	public synchronized void computeBounds(double confidence) {
+		double alpha = 1.0 - confidence;
+
+		for (int g = 0; g < groups.size(); g++) {
+			double[] replicateProbas = new double[nrReplicates];
+			int nrReported = 0;
+			double sum = 0.0;
+			for (int replicate = 0; replicate < nrReplicates; replicate++) {
+				double proba = probabilities[g][replicate];
+				if (Double.isNaN(proba)) {
+					// not reported, i.e. not inferred as present
+					proba = 0.0;
+				} else {
+					nrReported++;
+				}
+				replicateProbas[replicate] = proba;
+				sum += proba;
+			}
+
+			if (nrReplicates == 0) {
+				result.setBootstrap(groups.get(g), Double.NaN, Double.NaN, 0);
+				continue;
+			}
+
+			// lower percentile by the nearest rank
+			Arrays.sort(replicateProbas);
+			double lower = replicateProbas[(int) Math.floor(alpha * (nrReplicates - 1))];
+
+			result.setBootstrap(groups.get(g), sum / nrReplicates, lower, nrReported);
+		}
+	}
+}
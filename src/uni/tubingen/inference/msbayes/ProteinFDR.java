@@ -0,0 +1,213 @@
+package uni.tubingen.inference.msbayes;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Orders the protein groups of an {@link InferenceResult} by descending
+ * probability and estimates their target/decoy q-values.
+ * <p>
+ * A group is a decoy, if the accessions of all its proteins start with the
+ * decoy prefix. The FDR at a probability threshold is estimated as the number
+ * of decoy groups divided by the number of target groups with at least this
+ * probability, the q-value of a group is the lowest FDR of all thresholds
+ * accepting it. Thus the q-values never decrease in the order of the groups,
+ * and a FDR cutoff keeps a prefix of them.
+ *
+ * @author julian
+ *
+ */
+public class ProteinFDR {
+
+	private final String decoyPrefix;
+
+	// the protein groups' IDs and their values, all sorted by descending probability
+	private String[] groups;
+	private double[] probabilities;
+	private boolean[] decoys;
+	private double[] qValues;
+
+
+	/**
+	 * Constructor
+	 *
+	 * @param decoyPrefix the prefix of the decoy accessions, null or empty for no FDR estimation
+	 */
+	public ProteinFDR(String decoyPrefix) {
+		this.decoyPrefix = ((decoyPrefix != null) && (decoyPrefix.length() > 0)) ? decoyPrefix : null;
+	}
+
+
+	/**
+	 * Sorts the protein groups of the result and computes their q-values.
+	 *
+	 * @param result
+	 */
+	public void compute(InferenceResult result) {
+		PeptideProteinGraph graph = result.getGraph();
+		HashMap<String, Number[]> proteinsMap = result.getProteinsMap();
+		int nrGroups = proteinsMap.size();
+
+		String[] unsortedGroups = new String[nrGroups];
+		double[] unsortedProbas = new double[nrGroups];
+		int g = 0;
+		for (Map.Entry<String, Number[]> groupIt : proteinsMap.entrySet()) {
+			unsortedGroups[g] = groupIt.getKey();
+			unsortedProbas[g] = groupIt.getValue()[0].doubleValue();
+			g++;
+		}
+
+		int[] order = sortByDescendingProbability(unsortedProbas);
+
+		groups = new String[nrGroups];
+		probabilities = new double[nrGroups];
+		decoys = new boolean[nrGroups];
+		qValues = new double[nrGroups];
+		for (int i = 0; i < nrGroups; i++) {
+			groups[i] = unsortedGroups[order[i]];
+			probabilities[i] = unsortedProbas[order[i]];
+			decoys[i] = isDecoyGroup(graph, groups[i]);
+		}
+
+		if (decoyPrefix == null) {
+			Arrays.fill(qValues, Double.NaN);
+			return;
+		}
+
+		// the FDR at each threshold, groups with the same probability are accepted together
+		int nrTargets = 0;
+		int nrDecoys = 0;
+		int blockStart = 0;
+		for (int i = 0; i < nrGroups; i++) {
+			if (decoys[i]) {
+				nrDecoys++;
+			} else {
+				nrTargets++;
+			}
+
+			if ((i == nrGroups - 1) || (probabilities[i + 1] != probabilities[i])) {
+				double fdr = (nrTargets > 0) ? Math.min(1.0, (double) nrDecoys / nrTargets) : 1.0;
+				for (int j = blockStart; j <= i; j++) {
+					qValues[j] = fdr;
+				}
+				blockStart = i + 1;
+			}
+		}
+
+		// the q-value is the lowest FDR of all thresholds accepting the group
+		for (int i = nrGroups - 2; i >= 0; i--) {
+			qValues[i] = Math.min(qValues[i], qValues[i + 1]);
+		}
+	}
+
+
+	/**
+	 * @return whether the accessions of all proteins in the group start with the decoy prefix
+	 */
+	private boolean isDecoyGroup(PeptideProteinGraph graph, String proteinIDs) {
+		if (decoyPrefix == null) {
+			return false;
+		}
+		for (String protID : proteinIDs.split(";")) {
+			if (!graph.getProteinAccessionByID(Integer.parseInt(protID)).startsWith(decoyPrefix)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+
+	/**
+	 * Sorts the indices of the probabilities by descending probability with a
+	 * bottom-up merge sort, equal probabilities keep their order.
+	 *
+	 * @param probas
+	 * @return the sorted indices
+	 */
+	private static int[] sortByDescendingProbability(double[] probas) {
+		int n = probas.length;
+		int[] order = new int[n];
+		for (int i = 0; i < n; i++) {
+			order[i] = i;
+		}
+		int[] buffer = new int[n];
+
+		for (int width = 1; width < n; width *= 2) {
+			for (int start = 0; start < n; start += 2 * width) {
+				int mid = Math.min(start + width, n);
+				int end = Math.min(start + 2 * width, n);
+
+				int left = start;
+				int right = mid;
+				for (int k = start; k < end; k++) {
+					if ((left < mid) && ((right >= end) || (probas[order[left]] >= probas[order[right]]))) {
+						buffer[k] = order[left++];
+					} else {
+						buffer[k] = order[right++];
+					}
+				}
+			}
+			int[] tmp = order;
+			order = buffer;
+			buffer = tmp;
+		}
+
+		return order;
+	}
+
+
+	/**
+	 * @return whether q-values are estimated, i.e. a decoy prefix is given
+	 */
+	public boolean hasQValues() {
+		return decoyPrefix != null;
+	}
+
+
+	public int getNrGroups() {
+		return groups.length;
+	}
+
+
+	/**
+	 * @return the IDs of the i-th protein group by descending probability
+	 */
+	public String getProteinIDs(int i) {
+		return groups[i];
+	}
+
+
+	public double getProbability(int i) {
+		return probabilities[i];
+	}
+
+
+	public boolean isDecoy(int i) {
+		return decoys[i];
+	}
+
+
+	/**
+	 * @return the q-value of the i-th group, NaN without decoy prefix
+	 */
+	public double getQValue(int i) {
+		return qValues[i];
+	}
+
+
+	/**
+	 * @param fdrCutoff
+	 * @return the number of groups (from the start of the order) with a q-value of at most the cutoff
+	 */
+	public int getNrAccepted(double fdrCutoff) {
+		if (decoyPrefix == null) {
+			return groups.length;
+		}
+		int nrAccepted = 0;
+		while ((nrAccepted < groups.length) && (qValues[nrAccepted] <= fdrCutoff)) {
+			nrAccepted++;
+		}
+		return nrAccepted;
+	}
+}
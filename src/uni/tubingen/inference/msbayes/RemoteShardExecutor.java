@@ -0,0 +1,629 @@
+package uni.tubingen.inference.msbayes;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Executes the shards on {@link ShardWorker} processes, which run on other
+ * machines or are spawned on this machine.
+ * <p>
+ * Each worker address is a slot with a connection, a thread and a queue of its
+ * own. A new shard is queued at the slot with the shortest queue, and a slot
+ * with an empty queue steals the last shard of the longest queue of another
+ * slot. A shard whose worker fails or reports an error is queued again at
+ * another slot, up to the given number of retries, and it is not stolen by a
+ * slot it failed on. A slot whose worker cannot be reconnected is given up,
+ * its queued shards go to the remaining slots.
+ * <p>
+ * The workers are given as comma-separated "host:port" addresses, an address
+ * given n times gets n connections to the worker. "local:n" spawns n worker
+ * JVMs on this machine, which listen on the loopback address only and are
+ * stopped again after the run.
+ * <p>
+ * A worker sends heartbeats while it infers a shard. If none arrives within
+ * {@link #HEARTBEAT_TIMEOUT_MILLIS}, e.g. because the worker's host is gone,
+ * the shard is retried and the worker is reconnected or given up.
+ *
+ * @author julian
+ *
+ */
+public class RemoteShardExecutor implements ShardExecutor {
+
+	/** default number of retries of a failed shard */
+	public static final int DEFAULT_RETRIES = 3;
+
+	/** the prefix of the worker specification spawning local workers */
+	public static final String LOCAL_WORKERS = "local:";
+
+	/** the time without any message from a worker, after which its shard is retried */
+	public static final int HEARTBEAT_TIMEOUT_MILLIS = 6 * (int) ShardProtocol.HEARTBEAT_INTERVAL_MILLIS;
+
+	private static final int CONNECT_TIMEOUT_MILLIS = 10000;
+
+	// the address the spawned local workers listen on
+	private static final String LOOPBACK_ADDRESS = "127.0.0.1";
+
+
+	private final String workers;
+
+	private final int maxRetries;
+
+	// options of the spawned local workers
+	private String executable;
+	private File scratchDirectory;
+	private boolean useNamedPipes;
+
+	private InferenceMonitor monitor;
+
+	private final List<Process> spawnedWorkers = new ArrayList<Process>();
+
+	private final List<Slot> slots = new ArrayList<Slot>();
+
+	// guards the queues of all slots
+	private final Object lock = new Object();
+
+	private boolean closed;
+
+	private long nextShardID;
+
+
+	/**
+	 * Constructor
+	 *
+	 * @param workers comma-separated "host:port" addresses of the workers, or "local:n" for n spawned workers
+	 * @param maxRetries the number of retries of a failed shard
+	 */
+	public RemoteShardExecutor(String workers, int maxRetries) {
+		this.workers = workers.trim();
+		this.maxRetries = maxRetries;
+		this.executable = null;
+		this.scratchDirectory = null;
+		this.useNamedPipes = false;
+	}
+
+
+	/**
+	 * sets the options of the spawned local workers
+	 *
+	 * @param executable the MSBayesPro executable, null for the one shipped with the plugin
+	 * @param scratchDirectory the directory of the temporary files, null for the default temporary directory
+	 * @param useNamedPipes whether the inputs are passed through named pipes
+	 */
+	public void setLocalWorkerOptions(String executable, File scratchDirectory, boolean useNamedPipes) {
+		this.executable = executable;
+		this.scratchDirectory = scratchDirectory;
+		this.useNamedPipes = useNamedPipes;
+	}
+
+
+	@Override
+	public void start(InferenceMonitor monitor) throws IOException {
+		this.monitor = monitor;
+		closed = false;
+		nextShardID = 0;
+
+		try {
+			List<InetSocketAddress> addresses;
+			if (workers.startsWith(LOCAL_WORKERS)) {
+				addresses = spawnLocalWorkers(Integer.parseInt(workers.substring(LOCAL_WORKERS.length()).trim()));
+			} else {
+				addresses = parseAddresses(workers);
+			}
+
+			for (InetSocketAddress address : addresses) {
+				Slot slot = new Slot(address);
+				try {
+					slot.connect();
+				} catch (IOException e) {
+					monitor.warn("could not connect to worker " + address + ": " + e.getMessage());
+					slot.alive = false;
+				}
+				slots.add(slot);
+			}
+			if (getNrAliveSlots() == 0) {
+				throw new IOException("none of the workers " + workers + " is available");
+			}
+			monitor.info("running MSBayesPro on " + getNrAliveSlots() + " worker slots");
+
+			for (Slot slot : slots) {
+				if (slot.alive) {
+					slot.start();
+				}
+			}
+		} catch (IOException e) {
+			shutdown();
+			throw e;
+		} catch (RuntimeException e) {
+			shutdown();
+			throw e;
+		}
+	}
+
+
+	/**
+	 * @param workers comma-separated "host:port" addresses
+	 * @return the parsed addresses
+	 */
+	static List<InetSocketAddress> parseAddresses(String workers) {
+		List<InetSocketAddress> addresses = new ArrayList<InetSocketAddress>();
+		for (String worker : workers.split(",")) {
+			worker = worker.trim();
+			int colon = worker.lastIndexOf(':');
+			if (colon <= 0) {
+				throw new IllegalArgumentException("invalid worker address '" + worker + "', expected host:port");
+			}
+			addresses.add(new InetSocketAddress(worker.substring(0, colon), Integer.parseInt(worker.substring(colon + 1))));
+		}
+		return addresses;
+	}
+
+
+	/**
+	 * spawns the given number of worker JVMs on this machine, with the same
+	 * Java and classpath as this one
+	 *
+	 * @param nrWorkers
+	 * @return the addresses of the workers
+	 * @throws IOException
+	 */
+	private List<InetSocketAddress> spawnLocalWorkers(int nrWorkers) throws IOException {
+		String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+		String classpath;
+		try {
+			classpath = new File(ShardWorker.class.getProtectionDomain().getCodeSource().getLocation().toURI()).getPath();
+		} catch (URISyntaxException e) {
+			throw new IOException("could not locate the classes of the worker: " + e.getMessage());
+		}
+
+		List<String> command = new ArrayList<String>();
+		command.add(java);
+		command.add("-cp");
+		command.add(classpath);
+		command.add(ShardWorker.class.getName());
+		command.add("-port");
+		command.add("0");
+		command.add("-bind");
+		command.add(LOOPBACK_ADDRESS);
+		command.add("-watch-stdin");
+		command.add("true");
+		command.add("-named-pipes");
+		command.add(Boolean.toString(useNamedPipes));
+		if (executable != null) {
+			command.add("-executable");
+			command.add(executable);
+		}
+		if (scratchDirectory != null) {
+			command.add("-scratch-dir");
+			command.add(scratchDirectory.getAbsolutePath());
+		}
+
+		List<InetSocketAddress> addresses = new ArrayList<InetSocketAddress>();
+		for (int i = 0; i < nrWorkers; i++) {
+			Process process = new ProcessBuilder(command).start();
+			spawnedWorkers.add(process);
+
+			BufferedReader stdOut = new BufferedReader(new InputStreamReader(process.getInputStream()));
+			String line = stdOut.readLine();
+			if ((line == null) || !line.startsWith(ShardWorker.LISTENING + " ")) {
+				throw new IOException("local worker " + (i + 1) + " did not start: " + line);
+			}
+			addresses.add(new InetSocketAddress(LOOPBACK_ADDRESS, Integer.parseInt(line.substring(ShardWorker.LISTENING.length() + 1).trim())));
+
+			forwardOutput(process.getInputStream(), i + 1);
+			forwardOutput(process.getErrorStream(), i + 1);
+		}
+		return addresses;
+	}
+
+
+	/**
+	 * passes the output of a spawned worker to the monitor, which also keeps the worker from blocking on a full pipe
+	 */
+	private void forwardOutput(final InputStream stream, final int worker) {
+		Thread forwarder = new Thread("local worker " + worker + " output") {
+			@Override
+			public void run() {
+				try {
+					BufferedReader reader = new BufferedReader(new InputStreamReader(stream));
+					String line;
+					while ((line = reader.readLine()) != null) {
+						monitor.warn("local worker " + worker + ": " + line);
+					}
+				} catch (IOException e) {
+					// the worker is gone
+				}
+			}
+		};
+		forwarder.setDaemon(true);
+		forwarder.start();
+	}
+
+
+	@Override
+	public int getNrSlots() {
+		return slots.size();
+	}
+
+
+	private int getNrAliveSlots() {
+		int nrAlive = 0;
+		for (Slot slot : slots) {
+			if (slot.alive) {
+				nrAlive++;
+			}
+		}
+		return nrAlive;
+	}
+
+
+	@Override
+	public InferenceResult execute(PeptideProteinGraph graph, List<PeptideProteinGraph.Component> shard,
+			boolean peptidePosteriors) throws Exception {
+		ShardTask task;
+		synchronized (lock) {
+			task = new ShardTask(nextShardID++, graph, shard, peptidePosteriors);
+			if (closed) {
+				task.fail(new IOException("the shard executor was shut down"));
+			} else {
+				enqueue(task);
+			}
+		}
+		return task.await();
+	}
+
+
+	/**
+	 * queues the task at the alive slot with the shortest queue, preferably at
+	 * a slot it did not fail on, the lock must be held
+	 *
+	 * @param task
+	 */
+	private void enqueue(ShardTask task) {
+		Slot target = null;
+		for (Slot slot : slots) {
+			if (!slot.alive) {
+				continue;
+			}
+			boolean failed = task.failedSlots.contains(slot);
+			boolean targetFailed = (target != null) && task.failedSlots.contains(target);
+			if ((target == null) || (targetFailed && !failed)
+					|| ((failed == targetFailed) && (slot.queue.size() < target.queue.size()))) {
+				target = slot;
+			}
+		}
+
+		if (target == null) {
+			task.fail(new IOException("no worker is available for shard " + task.id));
+			return;
+		}
+		target.queue.addLast(task);
+		lock.notifyAll();
+	}
+
+
+	/**
+	 * queues a failed task again or fails it, after all retries are used up
+	 *
+	 * @param task
+	 * @param slot the slot the task failed on
+	 * @param e the cause of the failure
+	 */
+	private void retry(ShardTask task, Slot slot, IOException e) {
+		synchronized (lock) {
+			task.attempts++;
+			task.failedSlots.add(slot);
+			if (closed || task.isCancelled()) {
+				task.fail(e);
+			} else if (task.attempts > maxRetries) {
+				task.fail(new IOException("shard failed " + task.attempts + " times, last on worker "
+						+ slot.address + ": " + e.getMessage(), e));
+			} else {
+				monitor.warn("shard failed on worker " + slot.address + ", retrying: " + e.getMessage());
+				enqueue(task);
+			}
+		}
+	}
+
+
+	@Override
+	public void shutdown() {
+		List<Slot> closedSlots;
+		synchronized (lock) {
+			closed = true;
+			for (Slot slot : slots) {
+				for (ShardTask task : slot.queue) {
+					task.fail(new IOException("the shard executor was shut down"));
+				}
+				slot.queue.clear();
+			}
+			closedSlots = new ArrayList<Slot>(slots);
+			slots.clear();
+			lock.notifyAll();
+		}
+
+		for (Slot slot : closedSlots) {
+			// unblocks the slot's thread waiting for its worker
+			slot.disconnect();
+		}
+
+		for (Process process : spawnedWorkers) {
+			process.destroy();
+		}
+		spawnedWorkers.clear();
+	}
+
+
+	/**
+	 * A shard waiting for its execution.
+	 */
+	private static class ShardTask {
+
+		private final long id;
+		private final PeptideProteinGraph graph;
+		private final List<PeptideProteinGraph.Component> shard;
+		private final boolean peptidePosteriors;
+
+		private int attempts = 0;
+		private final Set<Slot> failedSlots = new HashSet<Slot>();
+
+		private boolean done = false;
+		private boolean cancelled = false;
+		private InferenceResult result = null;
+		private Exception error = null;
+
+
+		private ShardTask(long id, PeptideProteinGraph graph, List<PeptideProteinGraph.Component> shard,
+				boolean peptidePosteriors) {
+			this.id = id;
+			this.graph = graph;
+			this.shard = shard;
+			this.peptidePosteriors = peptidePosteriors;
+		}
+
+
+		private synchronized void complete(InferenceResult result) {
+			if (!done) {
+				this.result = result;
+				done = true;
+				notifyAll();
+			}
+		}
+
+
+		private synchronized void fail(Exception error) {
+			if (!done) {
+				this.error = error;
+				done = true;
+				notifyAll();
+			}
+		}
+
+
+		private synchronized boolean isCancelled() {
+			return cancelled;
+		}
+
+
+		/**
+		 * waits for the result, an interrupted caller cancels the task
+		 */
+		private synchronized InferenceResult await() throws Exception {
+			try {
+				while (!done) {
+					wait();
+				}
+			} catch (InterruptedException e) {
+				cancelled = true;
+				throw e;
+			}
+
+			if (error != null) {
+				throw error;
+			}
+			return result;
+		}
+	}
+
+
+	/**
+	 * A connection to a worker with the queue of its shards.
+	 */
+	private class Slot extends Thread {
+
+		private final InetSocketAddress address;
+
+		private final LinkedList<ShardTask> queue = new LinkedList<ShardTask>();
+
+		// set to false, when the worker cannot be reached anymore
+		private volatile boolean alive = true;
+
+		private Socket socket;
+		private BufferedReader reader;
+		private PrintWriter writer;
+
+
+		private Slot(InetSocketAddress address) {
+			super("shard worker " + address);
+			this.address = address;
+			setDaemon(true);
+		}
+
+
+		private void connect() throws IOException {
+			socket = new Socket();
+			socket.setKeepAlive(true);
+			socket.setSoTimeout(HEARTBEAT_TIMEOUT_MILLIS);
+			socket.connect(address, CONNECT_TIMEOUT_MILLIS);
+			reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), "UTF-8"));
+			writer = new PrintWriter(new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), "UTF-8")));
+
+			String hello = reader.readLine();
+			if (!ShardProtocol.HELLO.equals(hello)) {
+				disconnect();
+				throw new IOException("not a MSBayesPro worker, it greeted with '" + hello + "'");
+			}
+		}
+
+
+		private synchronized void disconnect() {
+			if (socket != null) {
+				try {
+					socket.close();
+				} catch (IOException e) {
+					// closed anyway
+				}
+				socket = null;
+			}
+		}
+
+
+		/**
+		 * @return the next task of the own queue or one stolen from another slot, null when the executor is closed
+		 */
+		private ShardTask take() throws InterruptedException {
+			synchronized (lock) {
+				while (!closed) {
+					ShardTask task = queue.pollFirst();
+					if (task != null) {
+						return task;
+					}
+
+					task = steal();
+					if (task != null) {
+						return task;
+					}
+
+					lock.wait();
+				}
+				return null;
+			}
+		}
+
+
+		/**
+		 * removes the last task, which did not fail on this slot, from the longest queue of the other slots,
+		 * the lock must be held
+		 *
+		 * @return the stolen task, null if there is none
+		 */
+		private ShardTask steal() {
+			List<Slot> victims = new ArrayList<Slot>();
+			for (Slot slot : slots) {
+				if ((slot != this) && !slot.queue.isEmpty()) {
+					victims.add(slot);
+				}
+			}
+
+			while (!victims.isEmpty()) {
+				Slot victim = victims.get(0);
+				for (Slot slot : victims) {
+					if (slot.queue.size() > victim.queue.size()) {
+						victim = slot;
+					}
+				}
+
+				Iterator<ShardTask> taskIt = victim.queue.descendingIterator();
+				while (taskIt.hasNext()) {
+					ShardTask task = taskIt.next();
+					if (!task.failedSlots.contains(this)) {
+						taskIt.remove();
+						return task;
+					}
+				}
+				victims.remove(victim);
+			}
+			return null;
+		}
+
+
+		@Override
+		public void run() {
+			try {
+				ShardTask task;
+				while ((task = take()) != null) {
+					if (task.isCancelled()) {
+						continue;
+					}
+
+					try {
+						ShardProtocol.writeShard(writer, task.id, task.graph, task.shard, task.peptidePosteriors);
+						if (writer.checkError()) {
+							throw new IOException("could not send the shard");
+						}
+						task.complete(ShardProtocol.readResult(reader, task.id, task.graph));
+					} catch (ShardProtocol.ShardFailedException e) {
+						// the worker is fine, but could not infer the shard
+						retry(task, this, e);
+					} catch (SocketTimeoutException e) {
+						// the worker or its host is gone without closing the connection
+						retry(task, this, new IOException("no heartbeat from the worker for "
+								+ (HEARTBEAT_TIMEOUT_MILLIS / 1000) + " seconds"));
+						if (!reconnect()) {
+							return;
+						}
+					} catch (IOException e) {
+						retry(task, this, e);
+						if (!reconnect()) {
+							return;
+						}
+					}
+				}
+			} catch (InterruptedException e) {
+				// stopped
+			} finally {
+				disconnect();
+			}
+		}
+
+
+		/**
+		 * reconnects after a failed connection, or gives up the slot
+		 *
+		 * @return whether the slot is connected again
+		 */
+		private boolean reconnect() {
+			disconnect();
+			synchronized (lock) {
+				if (closed) {
+					return false;
+				}
+			}
+
+			try {
+				connect();
+				return true;
+			} catch (IOException e) {
+				synchronized (lock) {
+					alive = false;
+					if (!closed) {
+						monitor.warn("giving up worker " + address + ": " + e.getMessage());
+					}
+
+					// the queued shards go to the remaining slots, or fail if there are none
+					List<ShardTask> orphans = new ArrayList<ShardTask>(queue);
+					queue.clear();
+					for (ShardTask orphan : orphans) {
+						enqueue(orphan);
+					}
+				}
+				return false;
+			}
+		}
+	}
+}
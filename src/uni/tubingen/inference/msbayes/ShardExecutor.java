@@ -0,0 +1,54 @@
+package uni.tubingen.inference.msbayes;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Executes shards, i.e. batches of components, of the exact inference by
+ * MSBayesPro for the {@link MSBayesProEngine}. The engine calls
+ * {@link #execute(PeptideProteinGraph, List, boolean)} concurrently from its
+ * threads.
+ * <p>
+ * {@link LocalShardExecutor} runs the MSBayesPro executable on this machine,
+ * {@link RemoteShardExecutor} sends the shards to {@link ShardWorker}
+ * processes.
+ *
+ * @author julian
+ *
+ */
+public interface ShardExecutor {
+
+	/**
+	 * Prepares the executor for a run of the engine, e.g. connects to the workers.
+	 *
+	 * @param monitor receives the messages of the executor
+	 * @throws IOException
+	 */
+	public void start(InferenceMonitor monitor) throws IOException;
+
+
+	/**
+	 * @return the number of shards executed concurrently besides the engine's
+	 *         threads, 0 if the shards are executed on the calling threads
+	 */
+	public int getNrSlots();
+
+
+	/**
+	 * Infers the components of the shard, blocking until they are done.
+	 *
+	 * @param graph the graph (or bootstrap replicate) of the components
+	 * @param shard the components to infer
+	 * @param peptidePosteriors whether the peptide posteriors are inferred as well
+	 * @return the protein groups and, if requested, the peptide posteriors of the shard
+	 * @throws Exception
+	 */
+	public InferenceResult execute(PeptideProteinGraph graph, List<PeptideProteinGraph.Component> shard,
+			boolean peptidePosteriors) throws Exception;
+
+
+	/**
+	 * Releases all resources of the executor after a run, e.g. stops spawned workers.
+	 */
+	public void shutdown();
+}
@@ -0,0 +1,216 @@
+package uni.tubingen.inference.msbayes;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The line-based protocol between the {@link RemoteShardExecutor} and the
+ * {@link ShardWorker}, all lines are UTF-8. After connecting, the worker
+ * greets with {@link #HELLO}. Then the client sends shards and the worker
+ * answers each of them, one at a time:
+ *
+ * <pre>
+ * SHARD &lt;id&gt; &lt;0|1: peptide posteriors&gt;
+ * PROBABILITIES
+ * &lt;lines of the probability file&gt;
+ * DETECTABILITIES
+ * &lt;lines of the detectability file&gt;
+ * END
+ * </pre>
+ *
+ * answered by any number of {@link #HEARTBEAT} lines, which the worker sends
+ * every {@link #HEARTBEAT_INTERVAL_MILLIS} while it infers the shard, followed by
+ *
+ * <pre>
+ * RESULT &lt;id&gt;
+ * G	&lt;protein IDs&gt;	&lt;probability&gt;	&lt;nrModPeps&gt;	&lt;nrPeps&gt;
+ * E	&lt;peptide&gt;	&lt;posterior&gt;
+ * END
+ * </pre>
+ *
+ * or by a single line "ERROR &lt;id&gt; &lt;message&gt;". The lines of the
+ * input files always contain a tab, the section lines never do.
+ *
+ * @author julian
+ *
+ */
+final class ShardProtocol {
+
+	static final String HELLO = "MSBAYESPRO-WORKER 2";
+
+	static final String HEARTBEAT = "HEARTBEAT";
+
+	static final long HEARTBEAT_INTERVAL_MILLIS = 10000;
+
+	private static final String SHARD = "SHARD";
+	private static final String PROBABILITIES = "PROBABILITIES";
+	private static final String DETECTABILITIES = "DETECTABILITIES";
+	private static final String END = "END";
+	private static final String RESULT = "RESULT";
+	private static final String ERROR = "ERROR";
+	private static final String GROUP_RECORD = "G";
+	private static final String PEPTIDE_RECORD = "E";
+
+
+	/**
+	 * A failure reported by the worker, the connection itself is still usable.
+	 */
+	static class ShardFailedException extends IOException {
+		private static final long serialVersionUID = 1L;
+
+		ShardFailedException(String message) {
+			super(message);
+		}
+	}
+
+
+	/**
+	 * A shard as received by the worker.
+	 */
+	static class Shard {
+		long id;
+		boolean peptidePosteriors;
+		final List<String> probabilityLines = new ArrayList<String>();
+		final List<String> detectabilityLines = new ArrayList<String>();
+	}
+
+
+	private ShardProtocol() {
+	}
+
+
+	static void writeShard(PrintWriter pw, long id, PeptideProteinGraph graph,
+			List<PeptideProteinGraph.Component> shard, boolean peptidePosteriors) {
+		pw.println(SHARD + " " + id + " " + (peptidePosteriors ? "1" : "0"));
+		pw.println(PROBABILITIES);
+		graph.writeProbabilities(pw, shard);
+		pw.println(DETECTABILITIES);
+		graph.writeDetectabilities(pw, shard);
+		pw.println(END);
+		pw.flush();
+	}
+
+
+	/**
+	 * @return the next shard, null if the client closed the connection
+	 */
+	static Shard readShard(BufferedReader reader) throws IOException {
+		String line = reader.readLine();
+		if (line == null) {
+			return null;
+		}
+
+		String[] header = line.split(" ");
+		if ((header.length != 3) || !SHARD.equals(header[0])) {
+			throw new IOException("expected a shard, got '" + line + "'");
+		}
+		Shard shard = new Shard();
+		shard.id = Long.parseLong(header[1]);
+		shard.peptidePosteriors = "1".equals(header[2]);
+
+		List<String> section = null;
+		while ((line = reader.readLine()) != null) {
+			if (line.indexOf('\t') >= 0) {
+				if (section == null) {
+					throw new IOException("input line outside of a section: '" + line + "'");
+				}
+				section.add(line);
+			} else if (PROBABILITIES.equals(line)) {
+				section = shard.probabilityLines;
+			} else if (DETECTABILITIES.equals(line)) {
+				section = shard.detectabilityLines;
+			} else if (END.equals(line)) {
+				return shard;
+			} else if (line.length() > 0) {
+				throw new IOException("unexpected line in shard " + shard.id + ": '" + line + "'");
+			}
+		}
+		throw new IOException("connection closed within shard " + shard.id);
+	}
+
+
+	static void writeResult(PrintWriter pw, long id, InferenceResult result) {
+		pw.println(RESULT + " " + id);
+		for (Map.Entry<String, Number[]> groupIt : result.getProteinsMap().entrySet()) {
+			Number[] values = groupIt.getValue();
+			pw.println(GROUP_RECORD + "\t" + groupIt.getKey() + "\t" + values[0].doubleValue()
+					+ "\t" + values[1].intValue() + "\t" + values[2].intValue());
+		}
+		for (Map.Entry<String, Double> peptideIt : result.getPeptidePosteriors().entrySet()) {
+			pw.println(PEPTIDE_RECORD + "\t" + peptideIt.getKey() + "\t" + peptideIt.getValue());
+		}
+		pw.println(END);
+		pw.flush();
+	}
+
+
+	static void writeHeartbeat(PrintWriter pw) {
+		pw.println(HEARTBEAT);
+		pw.flush();
+	}
+
+
+	static void writeError(PrintWriter pw, long id, String message) {
+		pw.println(ERROR + " " + id + " " + String.valueOf(message).replace('\n', ' ').replace('\r', ' '));
+		pw.flush();
+	}
+
+
+	/**
+	 * reads the answer of the worker to the shard with the given ID
+	 *
+	 * @param reader
+	 * @param id
+	 * @param graph the graph of the shard
+	 * @return the protein groups and peptide posteriors of the shard
+	 * @throws ShardFailedException if the worker could not infer the shard
+	 * @throws IOException if the connection failed
+	 */
+	static InferenceResult readResult(BufferedReader reader, long id, PeptideProteinGraph graph) throws IOException {
+		String line = reader.readLine();
+		while (HEARTBEAT.equals(line)) {
+			// the worker is still inferring the shard
+			line = reader.readLine();
+		}
+		if (line == null) {
+			throw new IOException("connection closed by the worker");
+		}
+		if (line.startsWith(ERROR + " " + id + " ")) {
+			throw new ShardFailedException(line.substring(ERROR.length() + 2 + Long.toString(id).length()));
+		}
+		if (!line.equals(RESULT + " " + id)) {
+			throw new IOException("expected the result of shard " + id + ", got '" + line + "'");
+		}
+
+		HashMap<String, Number[]> proteinsMap = new HashMap<String, Number[]>();
+		HashMap<String, Double> peptidePosteriors = new HashMap<String, Double>();
+		while ((line = reader.readLine()) != null) {
+			if (END.equals(line)) {
+				InferenceResult result = new InferenceResult(graph);
+				result.addProteins(proteinsMap, false);
+				result.addPeptides(peptidePosteriors, false);
+				return result;
+			}
+
+			String[] fields = line.split("\t");
+			try {
+				if (GROUP_RECORD.equals(fields[0]) && (fields.length == 5)) {
+					proteinsMap.put(fields[1], new Number[] {Double.parseDouble(fields[2]),
+							Integer.parseInt(fields[3]), Integer.parseInt(fields[4])});
+				} else if (PEPTIDE_RECORD.equals(fields[0]) && (fields.length == 3)) {
+					peptidePosteriors.put(fields[1], Double.parseDouble(fields[2]));
+				} else {
+					throw new IOException("unexpected line in the result of shard " + id + ": '" + line + "'");
+				}
+			} catch (NumberFormatException e) {
+				throw new IOException("invalid number in the result of shard " + id + ": '" + line + "'");
+			}
+		}
+		throw new IOException("connection closed within the result of shard " + id);
+	}
+}
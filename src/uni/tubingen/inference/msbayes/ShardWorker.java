@@ -0,0 +1,285 @@
+package uni.tubingen.inference.msbayes;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * A worker process executing shards of the exact inference for a
+ * {@link RemoteShardExecutor}. It listens on a TCP port and runs each received
+ * shard with a {@link LocalShardExecutor}; every connection is served by a
+ * thread of its own, so a worker serves as many shards at once as clients
+ * connect to it. See {@link ShardProtocol} for the protocol.
+ * <p>
+ * When a client disconnects while its shard is inferred, the shard is
+ * cancelled and its MSBayesPro process destroyed.
+ * <p>
+ * The protocol has no authentication, so a worker should only listen on a
+ * trusted network. Spawned local workers listen on the loopback address only.
+ * <p>
+ * After binding, the worker prints "LISTENING &lt;port&gt;" on the standard
+ * output, so a port of 0 (any free port) can be used by the process spawning
+ * it.
+ *
+ * @author julian
+ *
+ */
+public class ShardWorker {
+
+	/** the line printed on the standard output, followed by the port */
+	public static final String LISTENING = "LISTENING";
+
+	private static final String USAGE =
+			"usage: java -cp msbayespro.jar " + ShardWorker.class.getName() + " [options]\n"
+			+ "options:\n"
+			+ "  -port <n>             the port to listen on, 0 for any free port (default: 0)\n"
+			+ "  -bind <address>       the address to listen on, e.g. 127.0.0.1 (default: all addresses)\n"
+			+ "  -executable <file>    the MSBayesPro executable (default: executables/ next to the jar)\n"
+			+ "  -scratch-dir <dir>    directory of the temporary files of MSBayesPro, e.g. /dev/shm\n"
+			+ "  -named-pipes <b>      pass the input to MSBayesPro through named pipes (default: false)\n"
+			+ "  -watch-stdin <b>      exit when the standard input is closed, i.e. the spawning process died (default: false)\n";
+
+
+	private final LocalShardExecutor executor;
+
+	private final InferenceMonitor monitor;
+
+
+	public ShardWorker(LocalShardExecutor executor, InferenceMonitor monitor) {
+		this.executor = executor;
+		this.monitor = monitor;
+		executor.start(monitor);
+	}
+
+
+	public static void main(String[] args) {
+		int port = 0;
+		String bindAddress = null;
+		String executable = null;
+		File scratchDirectory = null;
+		boolean useNamedPipes = false;
+		boolean watchStdin = false;
+
+		try {
+			for (int i = 0; i < args.length; i += 2) {
+				if (i + 1 >= args.length) {
+					throw new IllegalArgumentException("missing value of option " + args[i]);
+				}
+				if (args[i].equals("-port")) {
+					port = Integer.parseInt(args[i + 1]);
+				} else if (args[i].equals("-bind")) {
+					bindAddress = args[i + 1];
+				} else if (args[i].equals("-executable")) {
+					executable = args[i + 1];
+				} else if (args[i].equals("-scratch-dir")) {
+					scratchDirectory = new File(args[i + 1]);
+				} else if (args[i].equals("-named-pipes")) {
+					useNamedPipes = Boolean.parseBoolean(args[i + 1]);
+				} else if (args[i].equals("-watch-stdin")) {
+					watchStdin = Boolean.parseBoolean(args[i + 1]);
+				} else {
+					throw new IllegalArgumentException("unknown option " + args[i]);
+				}
+			}
+		} catch (IllegalArgumentException e) {
+			System.err.println(e.getMessage());
+			System.err.print(USAGE);
+			System.exit(2);
+		}
+
+		if (watchStdin) {
+			watchStdin();
+		}
+
+		try {
+			ShardWorker worker = new ShardWorker(new LocalShardExecutor(executable, scratchDirectory, useNamedPipes),
+					MSBayesProCli.createMonitor());
+			InetAddress address = (bindAddress != null) ? InetAddress.getByName(bindAddress) : null;
+			worker.serve(new ServerSocket(port, 50, address));
+		} catch (IOException e) {
+			e.printStackTrace();
+			System.exit(1);
+		}
+	}
+
+
+	/**
+	 * exits the process as soon as the standard input is closed
+	 */
+	private static void watchStdin() {
+		Thread watcher = new Thread("stdin watcher") {
+			@Override
+			public void run() {
+				try {
+					while (System.in.read() >= 0) {
+						// the spawning process never writes, wait for the end
+					}
+				} catch (IOException e) {
+					// the pipe is broken, so the spawning process is gone as well
+				}
+				System.exit(0);
+			}
+		};
+		watcher.setDaemon(true);
+		watcher.start();
+	}
+
+
+	/**
+	 * Accepts connections until the server socket is closed.
+	 *
+	 * @param serverSocket
+	 * @throws IOException
+	 */
+	public void serve(ServerSocket serverSocket) throws IOException {
+		System.out.println(LISTENING + " " + serverSocket.getLocalPort());
+		System.out.flush();
+
+		while (!serverSocket.isClosed()) {
+			final Socket socket = serverSocket.accept();
+			Thread handler = new Thread("shard connection " + socket.getRemoteSocketAddress()) {
+				@Override
+				public void run() {
+					handle(socket);
+				}
+			};
+			handler.start();
+		}
+	}
+
+
+	/**
+	 * serves the shards of a connection, one after the other
+	 *
+	 * @param socket
+	 */
+	private void handle(Socket socket) {
+		try {
+			BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), "UTF-8"));
+			PrintWriter writer = new PrintWriter(new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), "UTF-8")));
+			writer.println(ShardProtocol.HELLO);
+			writer.flush();
+
+			ShardProtocol.Shard shard;
+			while ((shard = ShardProtocol.readShard(reader)) != null) {
+				InferenceResult result;
+				FutureTask<InferenceResult> task = createTask(shard);
+				Thread heartbeat = startHeartbeat(writer, task);
+				try {
+					// runs on this thread, the heartbeat cancels it when the client is gone
+					task.run();
+					result = task.get();
+				} catch (CancellationException e) {
+					stopHeartbeat(heartbeat);
+					monitor.warn("connection " + socket.getRemoteSocketAddress() + " was lost, cancelled shard " + shard.id);
+					break;
+				} catch (ExecutionException e) {
+					stopHeartbeat(heartbeat);
+					if (!(e.getCause() instanceof IOException)) {
+						throw e;
+					}
+					ShardProtocol.writeError(writer, shard.id, e.getCause().getMessage());
+					continue;
+				}
+				stopHeartbeat(heartbeat);
+				ShardProtocol.writeResult(writer, shard.id, result);
+				if (writer.checkError()) {
+					break;
+				}
+			}
+		} catch (Exception e) {
+			monitor.warn("connection " + socket.getRemoteSocketAddress() + " failed: " + e.getMessage());
+		} finally {
+			try {
+				socket.close();
+			} catch (IOException e) {
+				// closed anyway
+			}
+		}
+	}
+
+
+	/**
+	 * creates the inference of a shard, to be run on the connection's thread
+	 */
+	private FutureTask<InferenceResult> createTask(final ShardProtocol.Shard shard) {
+		return new FutureTask<InferenceResult>(new Callable<InferenceResult>() {
+			@Override
+			public InferenceResult call() throws IOException, InterruptedException {
+				return executor.runMsBayesPro(null, createInputWriter(shard.probabilityLines),
+						createInputWriter(shard.detectabilityLines), shard.peptidePosteriors);
+			}
+		});
+	}
+
+
+	/**
+	 * Starts sending heartbeats to the client, while a shard is inferred. If a
+	 * heartbeat cannot be written, the client is gone and the task is cancelled,
+	 * which destroys its MSBayesPro process.
+	 */
+	private static Thread startHeartbeat(final PrintWriter writer, final FutureTask<InferenceResult> task) {
+		Thread heartbeat = new Thread("shard heartbeat") {
+			@Override
+			public void run() {
+				try {
+					while (true) {
+						Thread.sleep(ShardProtocol.HEARTBEAT_INTERVAL_MILLIS);
+						ShardProtocol.writeHeartbeat(writer);
+						if (writer.checkError()) {
+							task.cancel(true);
+							return;
+						}
+					}
+				} catch (InterruptedException e) {
+					// the shard is done
+				}
+			}
+		};
+		heartbeat.setDaemon(true);
+		heartbeat.start();
+		return heartbeat;
+	}
+
+
+	/**
+	 * stops the heartbeat and waits for it, so it does not write into the answer
+	 */
+	private static void stopHeartbeat(Thread heartbeat) {
+		heartbeat.interrupt();
+		boolean interrupted = false;
+		while (heartbeat.isAlive()) {
+			try {
+				heartbeat.join();
+			} catch (InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+
+	private static LocalShardExecutor.InputWriter createInputWriter(final Iterable<String> lines) {
+		return new LocalShardExecutor.InputWriter() {
+			@Override
+			public void write(PrintWriter pw) {
+				for (String line : lines) {
+					pw.println(line);
+				}
+			}
+		};
+	}
+}